@@ -0,0 +1,170 @@
+package com.tvblob.fandango.argo;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Connection and read timeouts for a BLOBbox derived from the round trip
+ * times measured for it, so that a box which normally answers in a few
+ * milliseconds is declared dead in a fraction of a second rather than
+ * after a fixed 10s.
+ *
+ * The smoothed round trip time and its variation are estimated as for TCP
+ * (RFC 6298): each timeout is the smoothed time plus four times the
+ * variation, kept between a minimum and a maximum. Until the first round
+ * trip has been measured the initial timeouts are used. Each timeout
+ * doubles the timeouts, up to the maximum, until the next round trip
+ * succeeds.
+ *
+ * One estimator is shared by all clients of the same box, see
+ * {@link #forHost(String)}.
+ */
+public class AdaptiveTimeouts {
+
+	public static final int INITIAL_CONNECTION_TIMEOUT_MS = 3000;
+	public static final int INITIAL_READ_TIMEOUT_MS = 10000;
+
+	public static final int MIN_CONNECTION_TIMEOUT_MS = 250;
+	public static final int MIN_READ_TIMEOUT_MS = 1000;
+	public static final int MAX_TIMEOUT_MS = 10000;
+
+	// Gains of the estimators and weight of the variation, as in RFC 6298
+	private static final double ALPHA = 0.125;
+	private static final double BETA = 0.25;
+	private static final int K = 4;
+
+	private static final int MAX_BACKOFF = 64;
+
+	private static final Map<String, AdaptiveTimeouts> TIMEOUTS = new HashMap<String, AdaptiveTimeouts>();
+
+	private final String host;
+
+	private boolean measured = false;
+	private double smoothedRoundTrip = 0;
+	private double roundTripVariation = 0;
+	private int backoff = 1;
+
+	/**
+	 * @param host
+	 */
+	public AdaptiveTimeouts(final String host) {
+		this.host = host;
+	}
+
+	/**
+	 * The estimator shared by all clients of the box at host
+	 *
+	 * @param host
+	 * @return {@link AdaptiveTimeouts}
+	 */
+	public static AdaptiveTimeouts forHost(final String host) {
+		synchronized (TIMEOUTS) {
+			AdaptiveTimeouts timeouts = TIMEOUTS.get(host);
+			if (timeouts == null) {
+				timeouts = new AdaptiveTimeouts(host);
+				TIMEOUTS.put(host, timeouts);
+			}
+			return timeouts;
+		}
+	}
+
+	/**
+	 * A request to the box was answered
+	 *
+	 * @param roundTripMs time from sending the request to receiving the
+	 *        response headers
+	 */
+	public synchronized void recordRoundTrip(final long roundTripMs) {
+		if (measured) {
+			roundTripVariation = (1 - BETA) * roundTripVariation + BETA
+					* Math.abs(smoothedRoundTrip - roundTripMs);
+			smoothedRoundTrip = (1 - ALPHA) * smoothedRoundTrip + ALPHA
+					* roundTripMs;
+		} else {
+			smoothedRoundTrip = roundTripMs;
+			roundTripVariation = roundTripMs / 2.0;
+			measured = true;
+		}
+		backoff = 1;
+	}
+
+	/**
+	 * A request to the box timed out
+	 */
+	public synchronized void recordTimeout() {
+		if (backoff < MAX_BACKOFF) {
+			backoff *= 2;
+		}
+	}
+
+	/**
+	 * Forget the measured round trips, e.g. after a change of network
+	 */
+	public synchronized void reset() {
+		measured = false;
+		smoothedRoundTrip = 0;
+		roundTripVariation = 0;
+		backoff = 1;
+	}
+
+	/**
+	 * @return milliseconds allowed to connect to the box
+	 */
+	public synchronized int getConnectionTimeout() {
+		return backOff(measured ? getRetransmissionTimeout()
+				: INITIAL_CONNECTION_TIMEOUT_MS, MIN_CONNECTION_TIMEOUT_MS);
+	}
+
+	/**
+	 * @return milliseconds allowed to wait for the response to a request
+	 */
+	public synchronized int getReadTimeout() {
+		return backOff(measured ? getRetransmissionTimeout()
+				: INITIAL_READ_TIMEOUT_MS, MIN_READ_TIMEOUT_MS);
+	}
+
+	/**
+	 * @return smoothed round trip time in milliseconds, 0 until measured
+	 */
+	public synchronized long getSmoothedRoundTrip() {
+		return Math.round(smoothedRoundTrip);
+	}
+
+	/**
+	 * @return round trip time variation in milliseconds, 0 until measured
+	 */
+	public synchronized long getRoundTripVariation() {
+		return Math.round(roundTripVariation);
+	}
+
+	/**
+	 * @return the host
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	private long getRetransmissionTimeout() {
+		return (long) Math.ceil(smoothedRoundTrip + K * roundTripVariation);
+	}
+
+	/**
+	 * @param timeout
+	 * @param min
+	 * @return timeout raised to min, multiplied by the current backoff and
+	 *         limited to {@link #MAX_TIMEOUT_MS}
+	 */
+	private int backOff(final long timeout, final int min) {
+		return (int) Math.min(MAX_TIMEOUT_MS, Math.max(min, timeout) * backoff);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public synchronized String toString() {
+		return host + " srtt=" + getSmoothedRoundTrip() + "ms rttvar="
+				+ getRoundTripVariation() + "ms connect="
+				+ getConnectionTimeout() + "ms read=" + getReadTimeout() + "ms";
+	}
+}
@@ -0,0 +1,285 @@
+package com.tvblob.fandango.argo;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.alexd.jsonrpc.JSONRPCException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The methods and protocol features supported by a BLOBbox firmware 
+ * version, as found by calling system.listMethods once per version and 
+ * user: the methods a Jabsorb session exports depend on the logged in user.
+ * 
+ * Capabilities are cached per firmware version string and user name, and 
+ * saved in the client's {@link ArgoSessionStore} if it has one, so that 
+ * the probe is not repeated when the process restarts. The version last 
+ * seen at each box address is remembered for the life of the process, so 
+ * that later clients of a known box can overlap the handshake calls in a
+ * batch. Use {@link #forget(String)} if a box may have been upgraded.
+ */
+public final class ArgoCapabilities {
+
+	// Prefix of the session store keys of saved capabilities
+	private static final String STORE_KEY_PREFIX = "capabilities:";
+
+	private static final Map<String, ArgoCapabilities> BY_VERSION = new HashMap<String, ArgoCapabilities>();
+	private static final Map<String, String> HOST_VERSIONS = new HashMap<String, String>();
+
+	private final String version;
+	private final Set<String> methods;
+	private final boolean batchSupported;
+
+	/**
+	 * @param version firmware version string
+	 * @param methods supported methods, null if unknown
+	 * @param batchSupported
+	 */
+	ArgoCapabilities(final String version, final Set<String> methods,
+			final boolean batchSupported) {
+		this.version = version;
+		this.methods = methods == null ? null : Collections
+				.unmodifiableSet(new HashSet<String>(methods));
+		this.batchSupported = batchSupported;
+	}
+
+	/**
+	 * The cached capabilities of the firmware last seen at host, for 
+	 * userName
+	 * 
+	 * @param host
+	 * @param userName
+	 * @return {@link ArgoCapabilities}, null if unknown
+	 */
+	public static ArgoCapabilities forHost(final String host,
+			final String userName) {
+		synchronized (BY_VERSION) {
+			final String version = HOST_VERSIONS.get(host);
+			return version == null ? null : BY_VERSION.get(getKey(version,
+					userName));
+		}
+	}
+
+	/**
+	 * The capabilities of a firmware version for userName, cached or saved 
+	 * in store
+	 * 
+	 * @param version firmware version string
+	 * @param userName
+	 * @param store null if capabilities are not saved
+	 * @return {@link ArgoCapabilities}, null if unknown
+	 */
+	public static ArgoCapabilities forVersion(final String version,
+			final String userName, final ArgoSessionStore store) {
+		final String key = getKey(version, userName);
+		synchronized (BY_VERSION) {
+			final ArgoCapabilities cached = BY_VERSION.get(key);
+			if (cached != null || store == null) {
+				return cached;
+			}
+		}
+		final ArgoCapabilities saved = load(version, store.load(STORE_KEY_PREFIX
+				+ key));
+		if (saved != null) {
+			synchronized (BY_VERSION) {
+				BY_VERSION.put(key, saved);
+			}
+		}
+		return saved;
+	}
+
+	/**
+	 * Find the capabilities of the logged in client's firmware, probing the 
+	 * box unless they are already cached or saved, and remember the version
+	 * as the one running at host.
+	 * 
+	 * The probe sends system.listMethods as a batch request, so a single 
+	 * round trip tells whether batches are accepted (the reply is a batch 
+	 * reply) and lists the methods. A firmware which does not understand 
+	 * batches answers with a parse error, and the call is then repeated on
+	 * its own.
+	 * 
+	 * @param host
+	 * @param userName the logged in user
+	 * @param client
+	 * @param version firmware version string
+	 * @param store null if capabilities are not saved
+	 * @return {@link ArgoCapabilities}
+	 */
+	static ArgoCapabilities probe(final String host, final String userName,
+			final JabsorbRPCClient client, final String version,
+			final ArgoSessionStore store) {
+		ArgoCapabilities capabilities = forVersion(version, userName, store);
+		if (capabilities == null) {
+			Object result = null;
+			client.setBatchSupported(true);
+			try {
+				// Errors of the call itself, e.g. introspection not 
+				// available, leave the methods unknown
+				result = client.createBatch().addIgnoringErrors(
+						"system.listMethods").execute()[0];
+			} catch (final JSONRPCException exception) {
+				if (RetryPolicy.isCommunicationFailure(exception)) {
+					// Try again with the next client, no batches until then
+					client.setBatchSupported(false);
+					return new ArgoCapabilities(version, null, false);
+				}
+				// Batch rejected in some other way
+				client.setBatchSupported(false);
+			}
+			Set<String> methods = null;
+			if (result instanceof JSONArray) {
+				final JSONArray list = (JSONArray) result;
+				methods = new HashSet<String>();
+				for (int i = 0; i < list.length(); i++) {
+					methods.add(list.optString(i));
+				}
+			}
+			capabilities = new ArgoCapabilities(version, methods, client
+					.isBatchSupported());
+			if (methods == null && !capabilities.isBatchSupported()) {
+				// Nothing learnt: the call repeated on its own may have 
+				// failed to reach the box, probe again next time
+				return capabilities;
+			}
+			save(userName, capabilities, store);
+		}
+		synchronized (BY_VERSION) {
+			BY_VERSION.put(getKey(version, userName), capabilities);
+			HOST_VERSIONS.put(host, version);
+		}
+		return capabilities;
+	}
+
+	/**
+	 * @param version
+	 * @param userName
+	 * @return key of the capabilities of version for userName
+	 */
+	private static String getKey(final String version, final String userName) {
+		return userName + '@' + version;
+	}
+
+	/**
+	 * Save capabilities in store, if any
+	 * 
+	 * @param userName
+	 * @param capabilities
+	 * @param store
+	 */
+	private static void save(final String userName,
+			final ArgoCapabilities capabilities, final ArgoSessionStore store) {
+		if (store == null) {
+			return;
+		}
+		try {
+			final JSONObject saved = new JSONObject();
+			saved.put("batch", capabilities.batchSupported);
+			if (capabilities.methods != null) {
+				saved.put("methods", new JSONArray(capabilities.methods));
+			}
+			store.save(STORE_KEY_PREFIX
+					+ getKey(capabilities.version, userName), saved.toString());
+		} catch (final JSONException exception) {
+			throw new IllegalStateException("Unable to save capabilities",
+					exception);
+		}
+	}
+
+	/**
+	 * @param version
+	 * @param saved the saved capabilities, may be null
+	 * @return {@link ArgoCapabilities}, null if none or corrupt
+	 */
+	private static ArgoCapabilities load(final String version,
+			final String saved) {
+		if (saved == null) {
+			return null;
+		}
+		try {
+			final JSONObject json = new JSONObject(saved);
+			Set<String> methods = null;
+			final JSONArray list = json.optJSONArray("methods");
+			if (list != null) {
+				methods = new HashSet<String>();
+				for (int i = 0; i < list.length(); i++) {
+					methods.add(list.getString(i));
+				}
+			}
+			return new ArgoCapabilities(version, methods, json
+					.getBoolean("batch"));
+		} catch (final JSONException exception) {
+			// Corrupt, probe again
+			return null;
+		}
+	}
+
+	/**
+	 * Forget the firmware version seen at host, the next client will check 
+	 * the version again
+	 * 
+	 * @param host
+	 */
+	public static void forget(final String host) {
+		synchronized (BY_VERSION) {
+			HOST_VERSIONS.remove(host);
+		}
+	}
+
+	/**
+	 * Discard all cached capabilities
+	 */
+	public static void clear() {
+		synchronized (BY_VERSION) {
+			BY_VERSION.clear();
+			HOST_VERSIONS.clear();
+		}
+	}
+
+	/**
+	 * @return the firmware version string
+	 */
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * True iff the firmware provides method, or if the supported methods 
+	 * are unknown
+	 * 
+	 * @param method
+	 * @return boolean
+	 */
+	public boolean hasMethod(final String method) {
+		return methods == null || methods.contains(method);
+	}
+
+	/**
+	 * @return the supported methods, null if unknown
+	 */
+	public Set<String> getMethods() {
+		return methods;
+	}
+
+	/**
+	 * @return true iff the firmware accepts JSON-RPC batch requests
+	 */
+	public boolean isBatchSupported() {
+		return batchSupported;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return version
+				+ (methods == null ? "" : " " + methods.size() + " methods")
+				+ (batchSupported ? " batch" : "");
+	}
+}
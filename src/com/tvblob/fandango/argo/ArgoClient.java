@@ -1,14 +1,34 @@
 package com.tvblob.fandango.argo;
 
 import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
 
+import org.alexd.jsonrpc.JSONRPCBatch;
+import org.alexd.jsonrpc.JSONRPCCallback;
 import org.alexd.jsonrpc.JSONRPCException;
+import org.alexd.jsonrpc.JSONRPCFuture;
+import org.alexd.jsonrpc.JSONRPCMetrics;
+import org.alexd.jsonrpc.JSONRPCNioClient;
+import org.alexd.jsonrpc.JSONRPCResponseCache;
+import org.alexd.jsonrpc.JSONRPCSelector;
 import org.apache.http.HttpResponse;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.util.Log;
-
 import com.tvblob.fandango.base.BLOBboxEncryptionUtils;
 import com.tvblob.fandango.base.StringUtilities;
 
@@ -21,7 +41,37 @@ import com.tvblob.fandango.base.StringUtilities;
  */
 public class ArgoClient {
 
-	private static final int TIMEOUT_MS = 10000;
+	// Calls which are not retried and may take a busy box much longer than
+	// the round trip times it is usually measured at. Other calls use 
+	// timeouts adapted to the box, see AdaptiveTimeouts.
+	private static final int ACTION_TIMEOUT_MS = 10000;
+
+	// Time a key sent asynchronously is held for the next operation to take
+	// it along in the same batch, before it is sent on its own
+	private static final long KEY_DEFER_MS = 200;
+	private static final Timer KEY_TIMER = new Timer("ArgoClient keys", true);
+	private static final String KEY_METHOD = "keyinput.remoteControlKeyPressed";
+	private static final int ADD_DOWNLOAD_TIMEOUT_MS = 30000;
+
+	// Least read timeout of the session setup, login and probe calls, the 
+	// fixed timeout used before timeouts were adapted: a box busy logging in
+	// must not time out and open its circuit breaker. Batches of keys share
+	// the probe's timeout.
+	private static final int HANDSHAKE_TIMEOUT_MS = 10000;
+	private static final String[] HANDSHAKE_METHODS = {
+			JabsorbRPCClient.POST_METHOD, JSONRPCBatch.BATCH_METHOD,
+			"version.getVersionString",
+			"authenticationManager.getAuthorizedUserName",
+			"authenticationManager.getLoginChallenge",
+			"authenticationManager.login", "system.listMethods" };
+
+	// Concurrent connections per BLOBbox, so that a shared client does not 
+	// serialize the operations of different threads
+	private static final int MAX_CONNECTIONS = 2;
+
+	// Time to live of cached responses, see enableResponseCache()
+	private static final long VERSION_TTL_MS = 600000;
+	private static final long AUTHORIZED_USER_TTL_MS = 30000;
 
 	private static final int MIN_VERSION_NUM = StringUtilities
 			.getCompoundVersionNumber("1.66.2");
@@ -32,10 +82,30 @@ public class ArgoClient {
 	private static final int MIN_QTB_VERSION_NUM = StringUtilities
 			.getCompoundVersionNumber("1.63.19");
 
-	private static final String TAG = "ArgoClient";
+	// Jabsorb error code: "method not found (session may have timed out)"
+	private static final int JABSORB_METHOD_NOT_FOUND = 591;
+
+	// Key of the random secret saved sessions are encrypted with
+	private static final String INSTALL_SECRET_KEY = "session-secret";
+	private static final Object INSTALL_SECRET_LOCK = new Object();
+
+	private static final Logger LOGGER = Logger.getLogger(ArgoClient.class
+			.getName());
 	private static final boolean DEBUG = true;
 
 	private final JabsorbRPCClient client;
+	private final String ipAddress;
+	private final String userName;
+	private final String password;
+	private final String version;
+	private final ArgoSessionStore sessionStore;
+	private final ArgoCapabilities capabilities;
+	// Keys sent asynchronously and not yet written, which the next operation
+	// sends ahead of itself in the same batch
+	private final List<String> deferredKeys = new ArrayList<String>();
+	// Keys written on their own which later operations must wait for: with 
+	// more than one connection they could otherwise overtake them
+	private final AtomicReference<JSONRPCFuture> pendingKey = new AtomicReference<JSONRPCFuture>();
 
 	/**
 	 * 
@@ -50,34 +120,184 @@ public class ArgoClient {
 			final String password) throws ArgoCommunicationException,
 			IncompatibleRemoteDeviceException,
 			IncompatibleSoftwareVersionException, ArgoAuthenticationException {
+		this(ipAddress, userName, password, null);
+	}
+
+	/**
+	 * Client which saves its session in sessionStore, encrypted and 
+	 * authenticated with a random secret saved there and the credentials, and resumes a saved session if the BLOBbox still accepts
+	 * it: a single getAuthorizedUserName call then replaces the validation 
+	 * and login handshake. The capabilities of the firmware are saved there
+	 * too, so that they are probed once per version and user.
+	 * 
+	 * @param ipAddress of BLOBbox
+	 * @param userName
+	 * @param password
+	 * @param sessionStore null to disable session persistence
+	 * @throws ArgoCommunicationException 
+	 * @throws IncompatibleRemoteDeviceException 
+	 * @throws IncompatibleSoftwareVersionException 
+	 * @throws ArgoAuthenticationException 
+	 */
+	public ArgoClient(final String ipAddress, final String userName,
+			final String password, final ArgoSessionStore sessionStore)
+			throws ArgoCommunicationException,
+			IncompatibleRemoteDeviceException,
+			IncompatibleSoftwareVersionException, ArgoAuthenticationException {
 		this.client = initClient(ipAddress);
+		this.ipAddress = ipAddress;
+		this.userName = userName;
+		this.password = password;
+		this.sessionStore = sessionStore;
 
 		if (DEBUG) {
-			Log.i(TAG, "I: " + getJSONRPCURL(ipAddress));
-			Log.i(TAG, "username: " + userName);
-			Log.i(TAG, "password: " + password);
+			LOGGER.info("I: " + getJSONRPCURL(ipAddress));
+			LOGGER.info("username: " + userName);
 		}
 
-		validateClient(ipAddress, client);
-		try {
-			login(client, userName, password, ipAddress);
-		} catch (final NoSuchAlgorithmException exception) {
-			throw new IllegalStateException("Unable to generate SHA1 digest",
-					exception);
-		} catch (final UnsupportedEncodingException exception) {
-			throw new IllegalStateException("No UTF-8 support!", exception);
-		} catch (final JSONRPCException exception) {
-			throw new ArgoAuthenticationException(ipAddress);
+		final String restoredVersion = restoreSession();
+		if (restoredVersion != null) {
+			this.version = restoredVersion;
+			this.capabilities = ArgoCapabilities.forVersion(restoredVersion,
+					userName, sessionStore);
+			if (capabilities != null) {
+				client.setBatchSupported(capabilities.isBatchSupported());
+			}
+			return;
 		}
 
+		final ArgoCapabilities known = ArgoCapabilities.forHost(ipAddress,
+				userName);
+		this.version = handshake(ipAddress, client, userName, password, known);
+		this.capabilities = ArgoCapabilities.probe(ipAddress, userName,
+				client, version, sessionStore);
+		client.setBatchSupported(capabilities.isBatchSupported());
+		saveSession();
 	}
 
+	/**
+	 * Send the HOME key without waiting for the BLOBbox to answer, any 
+	 * errors are ignored. The BLOBbox handles the key before the next 
+	 * operation on this client, see {@link #sendRemoteControlKeyAsync(String)}.
+	 */
 	public void sendHOMEKeyIgnoreErrors() {
+		// IGNORE any errors for HOME key
+		sendRemoteControlKeyAsync("HOME");
+	}
+
+	/**
+	 * Send key, returning immediately: any errors are ignored. 
+	 * 
+	 * Where the BLOBbox supports batches the key is held for 
+	 * {@value #KEY_DEFER_MS}ms, and the next operation on this client sends 
+	 * it in the same batch request, ahead of itself: the operation does not
+	 * wait for a separate answer to the key. A key not taken by an operation
+	 * in time is sent on its own.
+	 * 
+	 * Otherwise, or once the key has been sent on its own, requests may go 
+	 * out on different connections and each carries a single request at a 
+	 * time, so the next operation waits for the BLOBbox to answer the key 
+	 * (for at most {@value #ACTION_TIMEOUT_MS}ms) and is therefore handled 
+	 * after it.
+	 * 
+	 * @param key
+	 */
+	public void sendRemoteControlKeyAsync(final String key) {
+		if (!client.isBatchSupported()) {
+			sendKeysNow(new String[] { key });
+			return;
+		}
+		synchronized (deferredKeys) {
+			deferredKeys.add(key);
+			if (deferredKeys.size() == 1) {
+				KEY_TIMER.schedule(new TimerTask() {
+					/* (non-Javadoc)
+					 * @see java.util.TimerTask#run()
+					 */
+					@Override
+					public void run() {
+						// Under the lock, so that an operation cannot 
+						// overtake the keys before they are pending
+						synchronized (deferredKeys) {
+							final String[] keys = takeDeferredKeys();
+							if (keys.length > 0) {
+								sendKeysNow(keys);
+							}
+						}
+					}
+				}, KEY_DEFER_MS);
+			}
+		}
+	}
+
+	/**
+	 * @return the keys held for the next operation, which is now responsible
+	 *         for sending them
+	 */
+	private String[] takeDeferredKeys() {
+		synchronized (deferredKeys) {
+			final String[] keys = deferredKeys
+					.toArray(new String[deferredKeys.size()]);
+			deferredKeys.clear();
+			return keys;
+		}
+	}
+
+	/**
+	 * Take the keys held for the next operation, once the BLOBbox has 
+	 * answered any keys sent on their own.
+	 * 
+	 * @return the keys the caller must send ahead of its operation
+	 */
+	private String[] takeKeysAhead() {
+		final String[] keys = takeDeferredKeys();
+		awaitPendingKey();
+		return keys;
+	}
+
+	/**
+	 * Send keys on their own, without waiting for the BLOBbox to answer, 
+	 * once it has answered the keys sent before, see 
+	 * {@link #awaitPendingKey()}.
+	 * 
+	 * @param keys
+	 */
+	private void sendKeysNow(final String[] keys) {
+		awaitPendingKey();
+		pendingKey.set(client.send(new Callable<Object>() {
+			public Object call() throws JSONRPCException {
+				for (final String key : keys) {
+					invokeNow(KEY_METHOD, key);
+				}
+				return null;
+			}
+		}));
+	}
+
+	/**
+	 * Wait for the BLOBbox to answer the last keys sent on their own, if 
+	 * any. Errors are ignored.
+	 */
+	private void awaitPendingKey() {
+		final JSONRPCFuture pending = pendingKey.get();
+		if (pending == null) {
+			return;
+		}
 		try {
-			sendRemoteControlKey("HOME");
-		} catch (final Exception exception) {
-			// IGNORE any errors for HOME key
+			pending.get(ACTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (final InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		} catch (final ExecutionException exception) {
+			if (DEBUG) {
+				LOGGER.info("Ignoring key error: " + exception.getCause());
+			}
+		} catch (final TimeoutException exception) {
+			if (DEBUG) {
+				LOGGER.info("No answer to key after " + ACTION_TIMEOUT_MS
+						+ "ms, continuing");
+			}
 		}
+		pendingKey.compareAndSet(pending, null);
 	}
 
 	/**
@@ -86,25 +306,594 @@ public class ArgoClient {
 	 */
 	public void sendRemoteControlKey(final String key) throws ArgoException {
 		try {
-			client.call("keyinput.remoteControlKeyPressed", key);
+			invoke(remoteControlKeyCall(key));
 		} catch (final JSONRPCException exception) {
 			throw new ArgoException("Failed to send key " + key, exception);
 		}
 	}
 
 	/**
+	 * Send a sequence of keys in a single batch request, where supported
+	 * by the BLOBbox.
+	 *
+	 * @param keys
+	 * @throws ArgoException
+	 */
+	public void sendRemoteControlKeys(final String... keys)
+			throws ArgoException {
+		final JSONRPCBatch batch = client.createBatch();
+		for (final String key : takeKeysAhead()) {
+			batch.addIgnoringErrors(KEY_METHOD, key);
+		}
+		for (final String key : keys) {
+			batch.add(KEY_METHOD, key);
+		}
+		try {
+			try {
+				batch.execute();
+			} catch (final JSONRPCException exception) {
+				if (!isSessionError(exception)) {
+					throw exception;
+				}
+				revalidate();
+				batch.execute();
+			}
+		} catch (final JSONRPCException exception) {
+			throw new ArgoException("Failed to send keys "
+					+ Arrays.asList(keys), exception);
+		}
+	}
+
+	/**
+	 * @param call
+	 * @return the result of the call, see {@link #invoke(String, Object...)}
+	 * @throws JSONRPCException
+	 */
+	private Object invoke(final Call call) throws JSONRPCException {
+		return invoke(call.getMethod(), call.getParams());
+	}
+
+	/**
+	 * Call method after the keys sent asynchronously, see 
+	 * {@link #invokeNow(String, Object...)}: keys still held are sent in the
+	 * same batch, ahead of the call, keys already sent must have been 
+	 * answered.
+	 * 
+	 * @param method
+	 * @param params
+	 * @return the result of the call
+	 * @throws JSONRPCException
+	 */
+	private Object invoke(final String method, final Object... params)
+			throws JSONRPCException {
+		final String[] keys = takeKeysAhead();
+		if (keys.length == 0) {
+			return invokeNow(method, params);
+		}
+		checkSupported(method);
+		final JSONRPCBatch batch = client.createBatch();
+		for (final String key : keys) {
+			batch.addIgnoringErrors(KEY_METHOD, key);
+		}
+		batch.add(method, params);
+		Object[] results;
+		try {
+			results = batch.execute();
+		} catch (final JSONRPCException exception) {
+			if (!isSessionError(exception)) {
+				throw exception;
+			}
+			revalidate();
+			results = batch.execute();
+		}
+		return results[keys.length];
+	}
+
+	/**
+	 * Call method, logging in again and repeating the call once if the 
+	 * BLOBbox reports that the session has expired or is not authorized.
+	 * 
+	 * @param method
+	 * @param params
+	 * @return the result of the call
+	 * @throws JSONRPCException
+	 */
+	private Object invokeNow(final String method, final Object... params)
+			throws JSONRPCException {
+		checkSupported(method);
+		try {
+			return client.call(method, params);
+		} catch (final JSONRPCException exception) {
+			if (!isSessionError(exception)) {
+				throw exception;
+			}
+			if (DEBUG) {
+				LOGGER.info("Session error calling " + method
+						+ ", logging in again: " + exception.getMessage());
+			}
+			revalidate();
+			return client.call(method, params);
+		}
+	}
+
+	/**
+	 * @param method
+	 * @throws JSONRPCException if the BLOBbox firmware is known not to 
+	 *         provide method
+	 */
+	private void checkSupported(final String method) throws JSONRPCException {
+		if (!supports(method)) {
+			throw new JSONRPCException("Method " + method
+					+ " not supported by BLOBbox software version " + version);
+		}
+	}
+
+	/**
+	 * PACKAGE PRIVATE - start call through a {@link JSONRPCNioClient} which 
+	 * shares this client's session, so that no thread waits for the 
+	 * BLOBbox, see {@link ArgoFleet}. 
+	 * 
+	 * The call is neither retried nor subject to the circuit breaker, and a
+	 * session error is reported to callback like any other error: repeat 
+	 * the operation with this client, which logs in again.
+	 * 
+	 * @param selector performs the request
+	 * @param call
+	 * @param callback notified on the selector thread
+	 * @param deadline time in milliseconds after which the call is cancelled
+	 * @return handle to the call
+	 * @throws JSONRPCException if the BLOBbox firmware does not provide the
+	 *         method
+	 */
+	JSONRPCFuture invokeAsync(final JSONRPCSelector selector, final Call call,
+			final JSONRPCCallback callback, final long deadline)
+			throws JSONRPCException {
+		checkSupported(call.getMethod());
+		final JSONRPCNioClient nioClient = new JSONRPCNioClient(
+				getJSONRPCURL(ipAddress), selector);
+		final Cookie cookie = client.getSessionCookie();
+		if (cookie != null) {
+			nioClient.setCookie(cookie.getName(), cookie.getValue());
+		}
+		nioClient.setConnectionTimeout(client.getConnectionTimeout());
+		nioClient.setSoTimeout(client.getSoTimeout(call.getMethod()));
+		return nioClient.callAsync(callback, deadline, call.getMethod(), call
+				.getParams());
+	}
+
+	/**
+	 * Cache the responses to calls which return stable values: the software
+	 * version, the method list and the authorized user. The cache is 
+	 * cleared on login and logout, further methods may be declared 
+	 * cacheable with {@link #getResponseCache()}.
+	 * 
+	 * @return the response cache
+	 */
+	public JSONRPCResponseCache enableResponseCache() {
+		JSONRPCResponseCache cache = client.getResponseCache();
+		if (cache == null) {
+			cache = new JSONRPCResponseCache();
+			cache.setTTL("version.getVersionString", VERSION_TTL_MS);
+			cache.setTTL("system.listMethods", VERSION_TTL_MS);
+			cache.setTTL("authenticationManager.getAuthorizedUserName",
+					AUTHORIZED_USER_TTL_MS);
+			cache.addInvalidatingMethod("authenticationManager.login");
+			cache.addInvalidatingMethod("authenticationManager.logout");
+			client.setResponseCache(cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * @return the response cache, null unless enabled
+	 */
+	public JSONRPCResponseCache getResponseCache() {
+		return client.getResponseCache();
+	}
+
+	/**
+	 * Discard cached responses, e.g. after a change of network
+	 */
+	public void invalidateResponseCache() {
+		final JSONRPCResponseCache cache = client.getResponseCache();
+		if (cache != null) {
+			cache.invalidate();
+		}
+	}
+
+	/**
+	 * True iff the BLOBbox firmware provides method, or if its methods are
+	 * unknown
+	 * 
+	 * @param method
+	 * @return boolean
+	 */
+	public boolean supports(final String method) {
+		return capabilities == null || capabilities.hasMethod(method);
+	}
+
+	/**
+	 * @return the capabilities of the BLOBbox firmware, null if unknown
+	 */
+	public ArgoCapabilities getCapabilities() {
+		return capabilities;
+	}
+
+	/**
+	 * Set up the Jabsorb session and log in again
+	 * 
+	 * @throws JSONRPCException
+	 */
+	private synchronized void revalidate() throws JSONRPCException {
+		invalidateResponseCache();
+		client.performPost(getArgoURL(ipAddress));
+		login(client, userName, password, ipAddress);
+		saveSession();
+	}
+
+	/**
+	 * Install the session saved in the session store, if any, and check 
+	 * that the BLOBbox still accepts it. A stale or unreadable session is
+	 * removed from the store.
+	 * 
+	 * @return the BLOBbox software version saved with the session, null if 
+	 *         no session was resumed
+	 */
+	private String restoreSession() {
+		if (sessionStore == null) {
+			return null;
+		}
+		final String saved = sessionStore.load(getSessionKey());
+		if (saved == null) {
+			return null;
+		}
+
+		try {
+			final JSONObject session = new JSONObject(BLOBboxEncryptionUtils
+					.decrypt(saved, getSessionSecret()));
+			final BasicClientCookie cookie = new BasicClientCookie(session
+					.getString("name"), session.getString("value"));
+			cookie.setDomain(session.getString("domain"));
+			cookie.setPath(session.getString("path"));
+			client.setSessionCookie(cookie);
+
+			final String authUserName = client
+					.callString("authenticationManager.getAuthorizedUserName");
+			if (authUserName != null && !authUserName.equals("null")) {
+				if (DEBUG) {
+					LOGGER.info("Resumed session as " + authUserName);
+				}
+				return session.getString("version");
+			}
+		} catch (final GeneralSecurityException exception) {
+			// Saved with other credentials, or corrupt
+		} catch (final UnsupportedEncodingException exception) {
+			throw new IllegalStateException("No UTF-8 support!", exception);
+		} catch (final JSONException exception) {
+			// Corrupt
+		} catch (final JSONRPCException exception) {
+			if (RetryPolicy.isCommunicationFailure(exception)) {
+				// Box unreachable, the session may still be valid
+				client.clearCookies();
+				return null;
+			}
+			// Session expired or methods missing
+		}
+
+		if (DEBUG) {
+			LOGGER.info("Discarding saved session for " + ipAddress);
+		}
+		sessionStore.remove(getSessionKey());
+		client.clearCookies();
+		return null;
+	}
+
+	/**
+	 * Save the current session in the session store, if any
+	 */
+	private void saveSession() {
+		if (sessionStore == null) {
+			return;
+		}
+		final Cookie cookie = client.getSessionCookie();
+		if (cookie == null) {
+			return;
+		}
+
+		try {
+			final JSONObject session = new JSONObject();
+			session.put("name", cookie.getName());
+			session.put("value", cookie.getValue());
+			session.put("domain", cookie.getDomain());
+			session.put("path", cookie.getPath());
+			session.put("version", version);
+			sessionStore.save(getSessionKey(), BLOBboxEncryptionUtils
+					.encrypt(session.toString(), getSessionSecret()));
+		} catch (final GeneralSecurityException exception) {
+			if (DEBUG) {
+				LOGGER.warning("Unable to save session: " + exception.toString());
+			}
+		} catch (final UnsupportedEncodingException exception) {
+			throw new IllegalStateException("No UTF-8 support!", exception);
+		} catch (final JSONException exception) {
+			throw new IllegalStateException("Unable to save session",
+					exception);
+		}
+	}
+
+	/**
+	 * @return key of this client's session in the session store
+	 */
+	private String getSessionKey() {
+		return userName + '@' + ipAddress;
+	}
+
+	/**
+	 * @return key used to encrypt the saved session, derived from the 
+	 *         random secret of this installation and the credentials, so 
+	 *         that a session is only resumed by a client with the same 
+	 *         credentials
+	 * @throws GeneralSecurityException
+	 * @throws UnsupportedEncodingException
+	 */
+	private byte[] getSessionSecret() throws GeneralSecurityException,
+			UnsupportedEncodingException {
+		return BLOBboxEncryptionUtils.deriveKey(getInstallSecret(sessionStore),
+				ipAddress + ':' + userName + ':' + password);
+	}
+
+	/**
+	 * The random secret of this installation, generated and saved in the 
+	 * session store the first time it is needed. It never leaves the store,
+	 * so the saved sessions cannot be decrypted with the credentials alone.
+	 * 
+	 * @param sessionStore
+	 * @return secret
+	 */
+	private static byte[] getInstallSecret(final ArgoSessionStore sessionStore) {
+		synchronized (INSTALL_SECRET_LOCK) {
+			final String saved = sessionStore.load(INSTALL_SECRET_KEY);
+			if (saved != null && StringUtilities.isValidHexString(saved)) {
+				return StringUtilities.hexStringToBytes(saved);
+			}
+			final byte[] secret = BLOBboxEncryptionUtils.generateSecret();
+			sessionStore.save(INSTALL_SECRET_KEY, StringUtilities
+					.bytesToHexString(secret));
+			return secret;
+		}
+	}
+
+	/**
+	 * True iff the BLOBbox rejected the call because the Jabsorb session 
+	 * has expired (the session objects, and so the methods, are missing) or
+	 * the session is not authorized.
+	 * 
+	 * @param exception
+	 * @return boolean
+	 */
+	static boolean isSessionError(final JSONRPCException exception) {
+		if (!(exception.getError() instanceof JSONObject)) {
+			return false;
+		}
+		final JSONObject error = (JSONObject) exception.getError();
+		if (error.optInt("code") == JABSORB_METHOD_NOT_FOUND) {
+			return true;
+		}
+		final String message = error.optString("msg").toLowerCase();
+		return message.indexOf("session") >= 0
+				|| message.indexOf("login") >= 0
+				|| message.indexOf("authoriz") >= 0;
+	}
+
+	/**
+	 * True iff this client was created for the given credentials
+	 * 
+	 * @param userName
+	 * @param password
+	 * @return boolean
+	 */
+	public boolean hasCredentials(final String userName,
+			final String password) {
+		return equal(this.userName, userName) && equal(this.password, password);
+	}
+
+	private static boolean equal(final String a, final String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * @param uri
+	 * @param title
+	 * @param description
+	 * @return the call made by {@link #playURI(String, String, String)}
+	 */
+	static Call playURICall(final String uri, final String title,
+			final String description) {
+		return new Call("action.playURI", uri, JSONObject.quote(title),
+				JSONObject.quote(description));
+	}
+
+	/**
+	 * @param url
+	 * @return the call made by {@link #browseURL(String)}
+	 */
+	static Call browseURLCall(final String url) {
+		return new Call("action.browserURL", url);
+	}
+
+	/**
+	 * @param url
+	 * @param mimetype
+	 * @return the call made by {@link #addDownload(String, String)}
+	 */
+	static Call addDownloadCall(final String url, final String mimetype) {
+		return new Call("downloads.addDownload", url, mimetype, url,
+				JSONObject.quote("Android download " + url));
+	}
+
+	/**
+	 * @param key
+	 * @return the call made by {@link #sendRemoteControlKey(String)}
+	 */
+	static Call remoteControlKeyCall(final String key) {
+		return new Call(KEY_METHOD, key);
+	}
+
+	/**
+	 * PACKAGE PRIVATE 
+	 * 
+	 * A single method call performing an operation, which may be sent with
+	 * {@link ArgoClient#invokeAsync} instead of the blocking operation.
+	 */
+	static final class Call {
+		private final String method;
+		private final Object[] params;
+
+		/**
+		 * @param method
+		 * @param params
+		 */
+		Call(final String method, final Object... params) {
+			this.method = method;
+			this.params = params;
+		}
+
+		/**
+		 * @return the method
+		 */
+		String getMethod() {
+			return method;
+		}
+
+		/**
+		 * @return the params
+		 */
+		Object[] getParams() {
+			return params;
+		}
+	}
+
+	/**
+	 * Close connections to the BLOBbox, the client may not be used afterwards
+	 */
+	public void close() {
+		client.shutdown();
+	}
+
+	/**
+	 * Validate the BLOBbox and log in. Once the Jabsorb session is set up 
+	 * the software version and the current user, which do not depend on 
+	 * each other, are requested at the same time: in a single batch request
+	 * if the firmware last seen at ipAddress is known to accept batches, 
+	 * otherwise as two asynchronous calls over the client's connections. 
+	 * The login challenge is only requested if no user is logged in.
+	 * 
 	 * @param ipAddress
+	 * @param client
+	 * @param userName
+	 * @param password
+	 * @param known the capabilities of the firmware last seen at ipAddress,
+	 *        null if unknown
+	 * @return the BLOBbox software version
+	 * @throws ArgoCommunicationException
+	 * @throws IncompatibleRemoteDeviceException
+	 * @throws IncompatibleSoftwareVersionException
+	 * @throws ArgoAuthenticationException
+	 */
+	private static String handshake(final String ipAddress,
+			final JabsorbRPCClient client, final String userName,
+			final String password, final ArgoCapabilities known)
+			throws ArgoCommunicationException,
+			IncompatibleRemoteDeviceException,
+			IncompatibleSoftwareVersionException, ArgoAuthenticationException {
+		try {
+			setupSession(ipAddress, client);
+		} catch (final JSONRPCException exception) {
+			throw new ArgoCommunicationException(ipAddress);
+		} catch (final IllegalArgumentException exception) {
+			throw new ArgoCommunicationException(ipAddress, exception);
+		}
+
+		Object[] results = null;
+		if (known != null && known.isBatchSupported()) {
+			client.setBatchSupported(true);
+			try {
+				results = client.createBatch().add("version.getVersionString")
+						.add("authenticationManager.getAuthorizedUserName")
+						.execute();
+			} catch (final JSONRPCException exception) {
+				if (RetryPolicy.isCommunicationFailure(exception)) {
+					throw new ArgoCommunicationException(ipAddress);
+				}
+				// Tell which call failed by repeating them separately
+				if (DEBUG) {
+					LOGGER.info("Batched handshake failed, repeating calls: "
+							+ exception.getMessage());
+				}
+			}
+		}
+		if (results == null) {
+			final JSONRPCFuture version = client
+					.callAsync("version.getVersionString");
+			final JSONRPCFuture authorizedUser = client
+					.callAsync("authenticationManager.getAuthorizedUserName");
+			results = new Object[2];
+			try {
+				results[0] = version.getResult();
+			} catch (final JSONRPCException exception) {
+				authorizedUser.cancel(true);
+				throw new ArgoCommunicationException(ipAddress);
+			}
+			try {
+				results[1] = authorizedUser.getResult();
+			} catch (final JSONRPCException exception) {
+				if (RetryPolicy.isCommunicationFailure(exception)) {
+					throw new ArgoCommunicationException(ipAddress);
+				}
+				throw new ArgoAuthenticationException(ipAddress);
+			}
+		}
+
+		final String version = String.valueOf(results[0]);
+		if (!isSupportedVersion(version)) {
+			// Older SMOJ Version does not support JSON play API  
+			throw new IncompatibleSoftwareVersionException(version);
+		}
+
+		final String authUserName = String.valueOf(results[1]);
+		if (authUserName.equals("null")) {
+			try {
+				final String challenge = client.callString(
+						"authenticationManager.getLoginChallenge",
+						new Object[] { userName });
+				authenticate(client, userName, password, ipAddress, challenge);
+			} catch (final JSONRPCException exception) {
+				if (RetryPolicy.isCommunicationFailure(exception)) {
+					throw new ArgoCommunicationException(ipAddress);
+				}
+				throw new ArgoAuthenticationException(ipAddress);
+			}
+			if (DEBUG) {
+				LOGGER.info("Logged in as " + userName);
+			}
+		} else if (DEBUG) {
+			LOGGER.info("Already Logged in as " + authUserName);
+		}
+		return version;
+	}
+
+	/**
+	 * Log in, unless the session is already logged in
+	 * 
+	 * @param client
 	 * @param userName
 	 * @param password
 	 * @param ipAddress 
 	 * @throws JSONRPCException 
-	 * @throws UnsupportedEncodingException 
-	 * @throws NoSuchAlgorithmException 
 	 */
 	private static void login(final JabsorbRPCClient client,
 			final String userName, final String password, final String ipAddress)
-			throws JSONRPCException, NoSuchAlgorithmException,
-			UnsupportedEncodingException {
+			throws JSONRPCException {
 		final String auth_user_name = client
 				.callString("authenticationManager.getAuthorizedUserName");
 
@@ -112,41 +901,27 @@ public class ArgoClient {
 			// we need to log in
 			// Authentication with blobbox
 			if (DEBUG) {
-				Log.i(TAG, "Trying authentication...");
+				LOGGER.info("Trying authentication...");
 			}
 
 			// get the challenge
 			if (DEBUG) {
-				Log.i(TAG, "getLoginChallenge...");
+				LOGGER.info("getLoginChallenge...");
 			}
 			final String challenge = client.callString(
 					"authenticationManager.getLoginChallenge",
 					new Object[] { userName });
 
-			final String digest = BLOBboxEncryptionUtils
-					.getEncryptedMessageDigestAsString(challenge + ':'
-							+ userName + ':' + password);
-
-			client.callString("authenticationManager.login",
-					new Object[] { digest });
-
-			// Need to repeat setup - list of methods has changed
-			client.performPost(getArgoURL(ipAddress));
-
-			if (DEBUG) {
-				Log.i(TAG, "challenge: " + challenge.toString());
-			}
-			final String auth_user_name2 = client
-					.callString("authenticationManager.getAuthorizedUserName");
+			authenticate(client, userName, password, ipAddress, challenge);
 
 			// newly logged in
 			if (DEBUG) {
-				Log.i(TAG, "Logged in as " + auth_user_name2);
+				LOGGER.info("Logged in as " + userName);
 			}
 		} else {
 			// already logged in
 			if (DEBUG) {
-				Log.i(TAG, "Already Logged in as " + auth_user_name + " "
+				LOGGER.info("Already Logged in as " + auth_user_name + " "
 						+ auth_user_name.getClass().getName());
 			}
 		}
@@ -154,24 +929,74 @@ public class ArgoClient {
 	}
 
 	/**
+	 * Answer the login challenge and set up the Jabsorb session again
+	 * 
+	 * @param client
+	 * @param userName
+	 * @param password
+	 * @param ipAddress
+	 * @param challenge
+	 * @throws JSONRPCException
+	 */
+	private static void authenticate(final JabsorbRPCClient client,
+			final String userName, final String password,
+			final String ipAddress, final String challenge)
+			throws JSONRPCException {
+		if (DEBUG) {
+			LOGGER.info("challenge: " + challenge);
+		}
+		final String digest;
+		try {
+			digest = BLOBboxEncryptionUtils
+					.getEncryptedMessageDigestAsString(challenge + ':'
+							+ userName + ':' + password);
+		} catch (final NoSuchAlgorithmException exception) {
+			throw new IllegalStateException("Unable to generate SHA1 digest",
+					exception);
+		} catch (final UnsupportedEncodingException exception) {
+			throw new IllegalStateException("No UTF-8 support!", exception);
+		}
+
+		client.callString("authenticationManager.login",
+				new Object[] { digest });
+
+		// Need to repeat setup - list of methods has changed
+		client.performPost(getArgoURL(ipAddress));
+	}
+
+	/**
+	 * Set up the Jabsorb session, loading the Argo objects
+	 * 
 	 * @param ipAddress
 	 * @param client
-	 * @return
+	 * @throws IncompatibleRemoteDeviceException if the device at ipAddress
+	 *         is not a BLOBbox
+	 * @throws JSONRPCException
+	 */
+	private static void setupSession(final String ipAddress,
+			final JabsorbRPCClient client)
+			throws IncompatibleRemoteDeviceException, JSONRPCException {
+		final HttpResponse response = client.performPost(getArgoURL(ipAddress));
+		final int statusCode = response.getStatusLine().getStatusCode();
+		if (statusCode != 204) {
+			throw new IncompatibleRemoteDeviceException(ipAddress);
+		}
+	}
+
+	/**
+	 * @param ipAddress
+	 * @param client
+	 * @return the BLOBbox software version
 	 * @throws IncompatibleRemoteDeviceException
 	 * @throws IncompatibleSoftwareVersionException
 	 * @throws ArgoCommunicationException
 	 */
-	protected static void validateClient(final String ipAddress,
+	protected static String validateClient(final String ipAddress,
 			final JabsorbRPCClient client)
 			throws IncompatibleRemoteDeviceException,
 			IncompatibleSoftwareVersionException, ArgoCommunicationException {
 		try {
-			final HttpResponse response = client
-					.performPost(getArgoURL(ipAddress));
-			final int statusCode = response.getStatusLine().getStatusCode();
-			if (statusCode != 204) {
-				throw new IncompatibleRemoteDeviceException(ipAddress);
-			}
+			setupSession(ipAddress, client);
 
 			final String version = client
 					.callString("version.getVersionString");
@@ -180,6 +1005,7 @@ public class ArgoClient {
 				// Older SMOJ Version does not support JSON play API  
 				throw new IncompatibleSoftwareVersionException(version);
 			}
+			return version;
 		} catch (final JSONRPCException exception1) {
 			throw new ArgoCommunicationException(ipAddress);
 		} catch (final IllegalArgumentException exception) {
@@ -209,10 +1035,22 @@ public class ArgoClient {
 	 */
 	protected static JabsorbRPCClient initClient(final String ipAddress) {
 		final JabsorbRPCClient client = new JabsorbRPCClient(
-				getJSONRPCURL(ipAddress));
+				getJSONRPCURL(ipAddress), MAX_CONNECTIONS);
 
-		client.setConnectionTimeout(TIMEOUT_MS);
-		client.setSoTimeout(TIMEOUT_MS);
+		client.setAdaptiveTimeouts(AdaptiveTimeouts.forHost(ipAddress));
+		client.setSoTimeout("action.playURI", ACTION_TIMEOUT_MS);
+		client.setSoTimeout("action.browserURL", ACTION_TIMEOUT_MS);
+		client.setSoTimeout("downloads.addDownload", ADD_DOWNLOAD_TIMEOUT_MS);
+		for (final String method : HANDSHAKE_METHODS) {
+			client.setSoTimeout(method, HANDSHAKE_TIMEOUT_MS);
+		}
+		client.setRetryPolicy(RetryPolicy.DEFAULT);
+		client.setCircuitBreaker(CircuitBreaker.forHost(ipAddress));
+		// Until the capabilities of the firmware show batches are accepted
+		client.setBatchSupported(false);
+		for (final String method : RetryPolicy.IDEMPOTENT_METHODS) {
+			client.setCoalesced(method, true);
+		}
 		return client;
 	}
 
@@ -246,6 +1084,47 @@ public class ArgoClient {
 		return "http://" + ip + "/jabsorb/JSON-RPC";
 	}
 
+	/**
+	 * @return the BLOBbox software version
+	 */
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the IP address of the BLOBbox
+	 */
+	public String getIPAddress() {
+		return ipAddress;
+	}
+
+	/**
+	 * @return the latency, error and traffic metrics recorded for calls
+	 *         made by this client
+	 */
+	public JSONRPCMetrics.Snapshot getMetrics() {
+		return client.getMetrics().snapshot();
+	}
+
+	/**
+	 * Export the metrics of this client, labelled with the box IP address 
+	 * and software version so that results from different boxes and 
+	 * firmware may be compared.
+	 * 
+	 * @return JSONObject
+	 */
+	public JSONObject exportMetrics() {
+		try {
+			final JSONObject json = getMetrics().toJSON();
+			json.put("ip", ipAddress);
+			json.put("version", version);
+			return json;
+		} catch (final JSONException exception) {
+			throw new IllegalStateException("Unable to export metrics",
+					exception);
+		}
+	}
+
 	/**
 	 * @param method
 	 * @param params
@@ -255,7 +1134,7 @@ public class ArgoClient {
 	public Object call(final String method, final Object... params)
 			throws ArgoException {
 		try {
-			return client.call(method, params);
+			return invoke(method, params);
 		} catch (final JSONRPCException exception) {
 			throw new ArgoException("Failed to call " + method, exception);
 		}
@@ -272,10 +1151,7 @@ public class ArgoClient {
 	public void playURI(final String uri, final String title,
 			final String description) throws ArgoException {
 		try {
-			client.call(
-					"action.playURI",
-					new Object[] { uri, JSONObject.quote(title),
-							JSONObject.quote(description) });
+			invoke(playURICall(uri, title, description));
 		} catch (final JSONRPCException exception) {
 			throw new ArgoException("Failed to call action.playURI " + uri,
 					exception);
@@ -291,7 +1167,7 @@ public class ArgoClient {
 	 */
 	public void browseURL(final String url) throws ArgoException {
 		try {
-			client.call("action.browserURL", url);
+			invoke(browseURLCall(url));
 		} catch (final JSONRPCException exception) {
 			throw new ArgoException("Failed to call action.browserURL " + url,
 					exception);
@@ -309,15 +1185,14 @@ public class ArgoClient {
 		try {
 
 			if (DEBUG) {
-				Log.i(TAG, "calling downloads.addDownload(" + url + ","
+				LOGGER.info("calling downloads.addDownload(" + url + ","
 						+ mimetype + ")");
 			}
 
-			final Object result = client.call("downloads.addDownload", url,
-					mimetype, url, JSONObject.quote("Android download " + url));
+			final Object result = invoke(addDownloadCall(url, mimetype));
 
 			if (DEBUG) {
-				Log.i(TAG, "result=" + result.toString());
+				LOGGER.info("result=" + result.toString());
 			}
 		} catch (final JSONRPCException exception) {
 			throw new ArgoException("Failed to call downloads.addDownload "
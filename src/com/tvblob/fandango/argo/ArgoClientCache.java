@@ -0,0 +1,202 @@
+package com.tvblob.fandango.argo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process wide cache of validated, logged in {@link ArgoClient} instances
+ * keyed by BLOBbox IP address and username, so that repeated operations 
+ * on the same box do not repeat the validation and login handshake.
+ * 
+ * Cached clients log in again by themselves if the BLOBbox reports that 
+ * their session has expired. They cache the responses to calls which 
+ * return stable values, see {@link ArgoClient#enableResponseCache()}; 
+ * discard those with {@link #invalidateResponses()} when the network or 
+ * the box may have changed. Clients are shared: discarding a client fails
+ * the calls other callers have in progress with it.
+ * 
+ * This class is not intended to be instantiated or subclassed.
+ */
+public final class ArgoClientCache {
+
+	private static final Map<String, Entry> ENTRIES = new HashMap<String, Entry>();
+
+	/**
+	 * No public constructor - use static methods
+	 */
+	private ArgoClientCache() {
+		// Intentionally empty
+	}
+
+	/**
+	 * The cached client for the box at ipAddress and userName, a new client
+	 * is created (validating and logging in) if none is cached or if the 
+	 * password has changed.
+	 * 
+	 * @param ipAddress
+	 * @param userName
+	 * @param password
+	 * @return {@link ArgoClient}
+	 * @throws ArgoCommunicationException
+	 * @throws IncompatibleRemoteDeviceException
+	 * @throws IncompatibleSoftwareVersionException
+	 * @throws ArgoAuthenticationException
+	 */
+	public static ArgoClient getClient(final String ipAddress,
+			final String userName, final String password)
+			throws ArgoCommunicationException,
+			IncompatibleRemoteDeviceException,
+			IncompatibleSoftwareVersionException, ArgoAuthenticationException {
+		return getClient(ipAddress, userName, password, null);
+	}
+
+	/**
+	 * As {@link #getClient(String, String, String)}, a new client saves its
+	 * session in sessionStore and resumes a previously saved session where 
+	 * possible.
+	 * 
+	 * @param ipAddress
+	 * @param userName
+	 * @param password
+	 * @param sessionStore null to disable session persistence
+	 * @return {@link ArgoClient}
+	 * @throws ArgoCommunicationException
+	 * @throws IncompatibleRemoteDeviceException
+	 * @throws IncompatibleSoftwareVersionException
+	 * @throws ArgoAuthenticationException
+	 */
+	public static ArgoClient getClient(final String ipAddress,
+			final String userName, final String password,
+			final ArgoSessionStore sessionStore)
+			throws ArgoCommunicationException,
+			IncompatibleRemoteDeviceException,
+			IncompatibleSoftwareVersionException, ArgoAuthenticationException {
+		final Entry entry = getEntry(createKey(ipAddress, userName));
+
+		// Lock per entry: creating a client for one box does not block others
+		synchronized (entry) {
+			if (entry.client != null
+					&& entry.client.hasCredentials(userName, password)) {
+				return entry.client;
+			}
+			if (entry.client != null) {
+				entry.client.close();
+				entry.client = null;
+			}
+			final ArgoClient client = new ArgoClient(ipAddress, userName,
+					password, sessionStore);
+			client.enableResponseCache();
+			entry.client = client;
+			return client;
+		}
+	}
+
+	/**
+	 * Discard cached clients for the box at ipAddress
+	 * 
+	 * @param ipAddress
+	 */
+	public static void invalidate(final String ipAddress) {
+		final String prefix = createKey(ipAddress, "");
+		final List<Entry> removed = new ArrayList<Entry>();
+		synchronized (ENTRIES) {
+			for (final Iterator<Map.Entry<String, Entry>> iterator = ENTRIES
+					.entrySet().iterator(); iterator.hasNext();) {
+				final Map.Entry<String, Entry> mapEntry = iterator.next();
+				if (mapEntry.getKey().startsWith(prefix)) {
+					removed.add(mapEntry.getValue());
+					iterator.remove();
+				}
+			}
+		}
+		close(removed);
+	}
+
+	/**
+	 * Discard the responses cached by all clients, e.g. after a change of 
+	 * network
+	 */
+	public static void invalidateResponses() {
+		final List<Entry> entries;
+		synchronized (ENTRIES) {
+			entries = new ArrayList<Entry>(ENTRIES.values());
+		}
+		for (final Entry entry : entries) {
+			entry.invalidateResponses();
+		}
+	}
+
+	/**
+	 * Discard all cached clients
+	 */
+	public static void clear() {
+		final List<Entry> removed;
+		synchronized (ENTRIES) {
+			removed = new ArrayList<Entry>(ENTRIES.values());
+			ENTRIES.clear();
+		}
+		close(removed);
+	}
+
+	/**
+	 * Close the clients of entries no longer in the cache. Not called with 
+	 * the ENTRIES lock held: closing waits for a client still logging in.
+	 * 
+	 * @param entries
+	 */
+	private static void close(final List<Entry> entries) {
+		for (final Entry entry : entries) {
+			entry.close();
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the entry for key, created if necessary
+	 */
+	private static Entry getEntry(final String key) {
+		synchronized (ENTRIES) {
+			Entry entry = ENTRIES.get(key);
+			if (entry == null) {
+				entry = new Entry();
+				ENTRIES.put(key, entry);
+			}
+			return entry;
+		}
+	}
+
+	/**
+	 * @param ipAddress
+	 * @param userName
+	 * @return String
+	 */
+	private static String createKey(final String ipAddress,
+			final String userName) {
+		return ipAddress + '\n' + (userName == null ? "" : userName);
+	}
+
+	/**
+	 * Holds the client for a key, also used as lock while creating it
+	 */
+	private static final class Entry {
+		volatile ArgoClient client = null;
+
+		void invalidateResponses() {
+			// No lock, so as not to wait for a client logging in
+			final ArgoClient current = client;
+			if (current != null) {
+				current.invalidateResponseCache();
+			}
+		}
+
+		synchronized void close() {
+			if (client != null) {
+				client.close();
+				client = null;
+			}
+		}
+	}
+}
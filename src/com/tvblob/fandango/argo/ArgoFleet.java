@@ -0,0 +1,547 @@
+package com.tvblob.fandango.argo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alexd.jsonrpc.JSONRPCCallback;
+import org.alexd.jsonrpc.JSONRPCException;
+import org.alexd.jsonrpc.JSONRPCFuture;
+import org.alexd.jsonrpc.JSONRPCSelector;
+
+/**
+ * Runs the same operation on many BLOBboxes at once, so that a command
+ * reaches a whole floor of boxes in about the time taken by the slowest box.
+ *
+ * Each dispatch is scoped: it returns only once every box has succeeded,
+ * failed or reached its deadline, and the operations of boxes past their
+ * deadline are cancelled and their clients closed, so that work started by
+ * a dispatch does not linger after it. The outcome for each box is 
+ * collected in an {@link ArgoFleetReport}.
+ *
+ * Operations run on a pool of daemon threads, started as boxes need them up
+ * to a bound. Boxes beyond the bound wait for a free thread within their 
+ * deadline, and are reported as not attempted if none becomes free in 
+ * time. Each fleet 
+ * keeps its own clients, reused from one dispatch to the next, so that 
+ * aborting a box does not fail calls made by clients used elsewhere, e.g. 
+ * those of {@link ArgoClientCache}.
+ *
+ * Once the fleet is logged in to a box, the operations made of a single 
+ * call (playURI, browseURL, addDownload, sendRemoteControlKey) are sent to
+ * it through the fleet's {@link JSONRPCSelector} instead: one thread then 
+ * carries the calls to all those boxes, and the pool only logs in to new 
+ * boxes and to boxes whose session has expired.
+ *
+ * No Android classes are used, fleets may be driven from a plain JVM.
+ */
+public class ArgoFleet {
+
+	/**
+	 * Default maximum number of boxes contacted at the same time: a floor 
+	 * of boxes, so that healthy boxes are not queued out by slow ones
+	 */
+	public static final int DEFAULT_THREADS = 256;
+
+	/**
+	 * Default time allowed to each box, including validation and login
+	 */
+	public static final long DEFAULT_DEADLINE_MS = 15000;
+
+	private static final AtomicInteger FLEET_NUMBER = new AtomicInteger();
+
+	private final String userName;
+	private final String password;
+	private final ExecutorService executor;
+	private final JSONRPCSelector selector;
+	private final Map<String, ArgoClient> clients = new HashMap<String, ArgoClient>();
+
+	/**
+	 * An operation performed on each box of a fleet
+	 */
+	public interface Operation {
+
+		/**
+		 * @param client logged in client for the box
+		 * @throws ArgoException
+		 */
+		void perform(ArgoClient client) throws ArgoException;
+	}
+
+	/**
+	 * Fleet using {@link #DEFAULT_THREADS} threads
+	 *
+	 * @param userName
+	 * @param password
+	 */
+	public ArgoFleet(final String userName, final String password) {
+		this(userName, password, DEFAULT_THREADS);
+	}
+
+	/**
+	 * @param userName used to log in to every box
+	 * @param password
+	 * @param threads maximum number of boxes contacted at the same time, 
+	 *        threads are started as boxes need them
+	 */
+	public ArgoFleet(final String userName, final String password,
+			final int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive: "
+					+ threads);
+		}
+		this.userName = userName;
+		this.password = password;
+
+		final String prefix = "argo-fleet-" + FLEET_NUMBER.incrementAndGet()
+				+ "-";
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger threadNumber = new AtomicInteger();
+
+					public Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable, prefix
+								+ threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		try {
+			this.selector = new JSONRPCSelector(
+					JSONRPCSelector.DEFAULT_MAX_CONNECTIONS_PER_ROUTE,
+					JSONRPCSelector.DEFAULT_IDLE_CONNECTION_TIMEOUT_MS);
+		} catch (final IOException exception) {
+			executor.shutdown();
+			throw new IllegalStateException("Unable to open selector",
+					exception);
+		}
+	}
+
+	/**
+	 * Play uri on every box
+	 *
+	 * @param ipAddresses
+	 * @param uri
+	 * @param title
+	 * @param description
+	 * @param deadlineMs time allowed to each box
+	 * @return {@link ArgoFleetReport}
+	 */
+	public ArgoFleetReport playURI(final Collection<String> ipAddresses,
+			final String uri, final String title, final String description,
+			final long deadlineMs) {
+		return dispatch(ipAddresses, ArgoClient.playURICall(uri, title,
+				description), new Operation() {
+			public void perform(final ArgoClient client) throws ArgoException {
+				client.playURI(uri, title, description);
+			}
+		}, deadlineMs);
+	}
+
+	/**
+	 * Open url in the browser of every box
+	 *
+	 * @param ipAddresses
+	 * @param url
+	 * @param deadlineMs time allowed to each box
+	 * @return {@link ArgoFleetReport}
+	 */
+	public ArgoFleetReport browseURL(final Collection<String> ipAddresses,
+			final String url, final long deadlineMs) {
+		return dispatch(ipAddresses, ArgoClient.browseURLCall(url),
+				new Operation() {
+					public void perform(final ArgoClient client)
+							throws ArgoException {
+						client.browseURL(url);
+					}
+				}, deadlineMs);
+	}
+
+	/**
+	 * Add url to the downloads of every box
+	 *
+	 * @param ipAddresses
+	 * @param url
+	 * @param mimetype
+	 * @param deadlineMs time allowed to each box
+	 * @return {@link ArgoFleetReport}
+	 */
+	public ArgoFleetReport addDownload(final Collection<String> ipAddresses,
+			final String url, final String mimetype, final long deadlineMs) {
+		return dispatch(ipAddresses, ArgoClient.addDownloadCall(url, mimetype),
+				new Operation() {
+					public void perform(final ArgoClient client)
+							throws ArgoException {
+						client.addDownload(url, mimetype);
+					}
+				}, deadlineMs);
+	}
+
+	/**
+	 * Send key to every box
+	 *
+	 * @param ipAddresses
+	 * @param key
+	 * @param deadlineMs time allowed to each box
+	 * @return {@link ArgoFleetReport}
+	 */
+	public ArgoFleetReport sendRemoteControlKey(
+			final Collection<String> ipAddresses, final String key,
+			final long deadlineMs) {
+		return dispatch(ipAddresses, ArgoClient.remoteControlKeyCall(key),
+				new Operation() {
+					public void perform(final ArgoClient client)
+							throws ArgoException {
+						client.sendRemoteControlKey(key);
+					}
+				}, deadlineMs);
+	}
+
+	/**
+	 * Perform operation on every box and wait until each box has completed
+	 * or reached its deadline. Deadlines are counted from the start of the
+	 * dispatch.
+	 *
+	 * @param ipAddresses duplicates are contacted once
+	 * @param operation
+	 * @param deadlineMs time allowed to each box
+	 * @return {@link ArgoFleetReport} with one result per box
+	 */
+	public ArgoFleetReport dispatch(final Collection<String> ipAddresses,
+			final Operation operation, final long deadlineMs) {
+		final long start = System.currentTimeMillis();
+		final long deadline = start + deadlineMs;
+
+		final List<String> boxes = new ArrayList<String>(
+				new LinkedHashSet<String>(ipAddresses));
+		final List<Future<ArgoFleetReport.Result>> futures = new ArrayList<Future<ArgoFleetReport.Result>>(
+				boxes.size());
+		final Map<String, BoxTask> pooled = new HashMap<String, BoxTask>();
+		for (final String ipAddress : boxes) {
+			final BoxTask task = new BoxTask(ipAddress, operation, start,
+					deadline);
+			futures.add(executor.submit(task));
+			pooled.put(ipAddress, task);
+		}
+		return collect(boxes, futures, pooled, start, deadline);
+	}
+
+	/**
+	 * Perform call on every box, as {@link #dispatch(Collection, Operation, long)}: 
+	 * boxes the fleet is logged in to are sent call through the selector, 
+	 * other boxes and boxes whose session has expired perform operation on
+	 * the pool.
+	 *
+	 * @param ipAddresses duplicates are contacted once
+	 * @param call the single call made by operation
+	 * @param operation
+	 * @param deadlineMs time allowed to each box
+	 * @return {@link ArgoFleetReport} with one result per box
+	 */
+	private ArgoFleetReport dispatch(final Collection<String> ipAddresses,
+			final ArgoClient.Call call, final Operation operation,
+			final long deadlineMs) {
+		final long start = System.currentTimeMillis();
+		final long deadline = start + deadlineMs;
+
+		final List<String> boxes = new ArrayList<String>(
+				new LinkedHashSet<String>(ipAddresses));
+		final List<Future<ArgoFleetReport.Result>> futures = new ArrayList<Future<ArgoFleetReport.Result>>(
+				boxes.size());
+		final Map<String, BoxTask> pooled = new HashMap<String, BoxTask>();
+		for (final String ipAddress : boxes) {
+			final ArgoClient client;
+			synchronized (clients) {
+				client = clients.get(ipAddress);
+			}
+			if (client == null) {
+				final BoxTask task = new BoxTask(ipAddress, operation, start,
+						deadline);
+				futures.add(executor.submit(task));
+				pooled.put(ipAddress, task);
+			} else {
+				futures.add(new SelectorCall(client, call, new BoxTask(
+						ipAddress, operation, start, deadline)).start());
+			}
+		}
+		return collect(boxes, futures, pooled, start, deadline);
+	}
+
+	/**
+	 * Wait until each box has completed or reached the deadline, and report
+	 * the outcome
+	 *
+	 * @param boxes
+	 * @param futures the result of each box
+	 * @param pooled the tasks of the boxes whose operation runs on the pool,
+	 *        which are aborted at the deadline
+	 * @param start
+	 * @param deadline
+	 * @return {@link ArgoFleetReport} with one result per box
+	 */
+	private ArgoFleetReport collect(final List<String> boxes,
+			final List<Future<ArgoFleetReport.Result>> futures,
+			final Map<String, BoxTask> pooled, final long start,
+			final long deadline) {
+		final ArgoFleetReport report = new ArgoFleetReport();
+		final List<String> aborted = new ArrayList<String>();
+		for (int i = 0; i < boxes.size(); i++) {
+			final String ipAddress = boxes.get(i);
+			final Future<ArgoFleetReport.Result> future = futures.get(i);
+			try {
+				report.add(future.get(Math.max(0, deadline
+						- System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+			} catch (final TimeoutException exception) {
+				future.cancel(true);
+				final BoxTask task = pooled.get(ipAddress);
+				if (task != null && !task.started) {
+					// Still waiting for a thread, the box was not contacted
+					report.add(ArgoFleetReport.Result.notAttempted(ipAddress,
+							System.currentTimeMillis() - start));
+					continue;
+				}
+				if (task != null) {
+					aborted.add(ipAddress);
+				}
+				report.add(ArgoFleetReport.Result.timedOut(ipAddress,
+						System.currentTimeMillis() - start));
+			} catch (final ExecutionException exception) {
+				// BoxTask reports its own failures, only errors end up here
+				report.add(ArgoFleetReport.Result.failed(ipAddress,
+						exception.getCause(), System.currentTimeMillis()
+								- start));
+			} catch (final InterruptedException exception) {
+				Thread.currentThread().interrupt();
+				for (int j = i; j < futures.size(); j++) {
+					futures.get(j).cancel(true);
+					if (pooled.containsKey(boxes.get(j))) {
+						aborted.add(boxes.get(j));
+					}
+				}
+				abort(aborted);
+				throw new IllegalStateException("Interrupted dispatching to "
+						+ boxes, exception);
+			}
+		}
+		abort(aborted);
+		return report;
+	}
+
+	/**
+	 * Abort the operations still running on ipAddresses by closing their
+	 * clients, which fails any call blocked on the network. A box still 
+	 * logging in is left to its own timeouts, its client is kept for the 
+	 * next dispatch.
+	 *
+	 * @param ipAddresses
+	 */
+	private void abort(final List<String> ipAddresses) {
+		final List<ArgoClient> removed = new ArrayList<ArgoClient>();
+		synchronized (clients) {
+			for (final String ipAddress : ipAddresses) {
+				final ArgoClient client = clients.remove(ipAddress);
+				if (client != null) {
+					removed.add(client);
+				}
+			}
+		}
+		for (final ArgoClient client : removed) {
+			client.close();
+		}
+	}
+
+	/**
+	 * The client of this fleet for the box at ipAddress, created (validating
+	 * and logging in) if necessary. No lock is held while logging in, should
+	 * two dispatches log in to the same box at once the second client is 
+	 * closed.
+	 *
+	 * @param ipAddress
+	 * @return {@link ArgoClient}
+	 * @throws ArgoException
+	 */
+	private ArgoClient getClient(final String ipAddress) throws ArgoException {
+		synchronized (clients) {
+			final ArgoClient client = clients.get(ipAddress);
+			if (client != null) {
+				return client;
+			}
+		}
+		final ArgoClient created = new ArgoClient(ipAddress, userName,
+				password);
+		created.enableResponseCache();
+		final ArgoClient client;
+		synchronized (clients) {
+			final ArgoClient existing = clients.get(ipAddress);
+			if (existing == null) {
+				clients.put(ipAddress, created);
+				return created;
+			}
+			client = existing;
+		}
+		created.close();
+		return client;
+	}
+
+	/**
+	 * Stop the threads of this fleet and close its clients, operations in 
+	 * progress are interrupted
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+		selector.shutdown();
+		final List<ArgoClient> removed;
+		synchronized (clients) {
+			removed = new ArrayList<ArgoClient>(clients.values());
+			clients.clear();
+		}
+		for (final ArgoClient client : removed) {
+			client.close();
+		}
+	}
+
+	/**
+	 * Sends the call of an operation to a box through the selector. Should 
+	 * the session have expired, the operation is performed on the pool 
+	 * instead, logging in again.
+	 */
+	private final class SelectorCall extends
+			FutureTask<ArgoFleetReport.Result> implements JSONRPCCallback {
+		private final ArgoClient client;
+		private final ArgoClient.Call call;
+		private final BoxTask fallback;
+		private volatile JSONRPCFuture pending = null;
+
+		/**
+		 * @param client logged in client of the box
+		 * @param call
+		 * @param fallback performs the operation on the pool
+		 */
+		SelectorCall(final ArgoClient client, final ArgoClient.Call call,
+				final BoxTask fallback) {
+			super(fallback);
+			this.client = client;
+			this.call = call;
+			this.fallback = fallback;
+		}
+
+		/**
+		 * Send the call
+		 * 
+		 * @return this
+		 */
+		SelectorCall start() {
+			try {
+				pending = client.invokeAsync(selector, call, this, Math.max(1,
+						fallback.deadline - System.currentTimeMillis()));
+			} catch (final JSONRPCException exception) {
+				onError(exception);
+			}
+			return this;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.alexd.jsonrpc.JSONRPCCallback#onResult(java.lang.Object)
+		 */
+		public void onResult(final Object result) {
+			set(ArgoFleetReport.Result.succeeded(fallback.ipAddress, System
+					.currentTimeMillis()
+					- fallback.start));
+		}
+
+		/* (non-Javadoc)
+		 * @see org.alexd.jsonrpc.JSONRPCCallback#onError(org.alexd.jsonrpc.JSONRPCException)
+		 */
+		public void onError(final JSONRPCException error) {
+			if (ArgoClient.isSessionError(error) && !isDone()) {
+				// Log in again on the pool, which must not wait on the 
+				// selector thread
+				try {
+					executor.execute(this);
+					return;
+				} catch (final RejectedExecutionException exception) {
+					// Fleet shut down, report the session error
+				}
+			}
+			set(ArgoFleetReport.Result.failed(fallback.ipAddress,
+					new ArgoException("Failed to call " + call.getMethod(),
+							error), System.currentTimeMillis()
+							- fallback.start));
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.FutureTask#cancel(boolean)
+		 */
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			final boolean cancelled = super.cancel(mayInterruptIfRunning);
+			final JSONRPCFuture current = pending;
+			if (cancelled && current != null) {
+				current.cancel(true);
+			}
+			return cancelled;
+		}
+	}
+
+	/**
+	 * Logs in and performs the operation on a single box, reporting the
+	 * outcome as a result rather than an exception
+	 */
+	private final class BoxTask implements Callable<ArgoFleetReport.Result> {
+		private final String ipAddress;
+		private final Operation operation;
+		private final long start;
+		private final long deadline;
+		private volatile boolean started = false;
+
+		BoxTask(final String ipAddress, final Operation operation,
+				final long start, final long deadline) {
+			this.ipAddress = ipAddress;
+			this.operation = operation;
+			this.start = start;
+			this.deadline = deadline;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.Callable#call()
+		 */
+		public ArgoFleetReport.Result call() {
+			if (System.currentTimeMillis() >= deadline) {
+				// Waited for a thread beyond the deadline
+				return ArgoFleetReport.Result.notAttempted(ipAddress, System
+						.currentTimeMillis()
+						- start);
+			}
+			started = true;
+			try {
+				operation.perform(getClient(ipAddress));
+				return ArgoFleetReport.Result.succeeded(ipAddress, System
+						.currentTimeMillis()
+						- start);
+			} catch (final ArgoException exception) {
+				return ArgoFleetReport.Result.failed(ipAddress, exception,
+						System.currentTimeMillis() - start);
+			} catch (final RuntimeException exception) {
+				return ArgoFleetReport.Result.failed(ipAddress, exception,
+						System.currentTimeMillis() - start);
+			}
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package com.tvblob.fandango.argo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Outcome of an {@link ArgoFleet} dispatch: one {@link Result} per box, in
+ * the order the boxes were given.
+ */
+public class ArgoFleetReport {
+
+	private final List<Result> results = new ArrayList<Result>();
+
+	/**
+	 * PACKAGE PRIVATE - reports are created by {@link ArgoFleet}
+	 */
+	ArgoFleetReport() {
+		// Intentionally empty
+	}
+
+	void add(final Result result) {
+		results.add(result);
+	}
+
+	/**
+	 * @return the result for each box
+	 */
+	public List<Result> getResults() {
+		return Collections.unmodifiableList(results);
+	}
+
+	/**
+	 * @param ipAddress
+	 * @return the result for the box at ipAddress, null if it was not part
+	 *         of the dispatch
+	 */
+	public Result getResult(final String ipAddress) {
+		for (final Result result : results) {
+			if (result.getIPAddress().equals(ipAddress)) {
+				return result;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the results of the boxes which failed or timed out
+	 */
+	public List<Result> getFailures() {
+		final List<Result> failures = new ArrayList<Result>();
+		for (final Result result : results) {
+			if (!result.isSucceeded()) {
+				failures.add(result);
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * @return number of boxes on which the operation succeeded
+	 */
+	public int getSucceededCount() {
+		return results.size() - getFailures().size();
+	}
+
+	/**
+	 * @return true iff the operation succeeded on every box
+	 */
+	public boolean isAllSucceeded() {
+		return getFailures().isEmpty();
+	}
+
+	/**
+	 * @return elapsed time of the slowest box in milliseconds
+	 */
+	public long getElapsedMs() {
+		long elapsed = 0;
+		for (final Result result : results) {
+			elapsed = Math.max(elapsed, result.getElapsedMs());
+		}
+		return elapsed;
+	}
+
+	/**
+	 * @return the results as a JSON array, e.g. for export by scripts
+	 */
+	public JSONArray toJSON() {
+		final JSONArray json = new JSONArray();
+		for (final Result result : results) {
+			json.put(result.toJSON());
+		}
+		return json;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return getSucceededCount() + "/" + results.size() + " succeeded in "
+				+ getElapsedMs() + "ms " + results;
+	}
+
+	/**
+	 * Outcome of the operation on a single box
+	 */
+	public static final class Result {
+
+		public static final String SUCCEEDED = "succeeded";
+		public static final String FAILED = "failed";
+		public static final String TIMED_OUT = "timed out";
+		public static final String NOT_ATTEMPTED = "not attempted";
+
+		private final String ipAddress;
+		private final String status;
+		private final Throwable error;
+		private final long elapsedMs;
+
+		private Result(final String ipAddress, final String status,
+				final Throwable error, final long elapsedMs) {
+			this.ipAddress = ipAddress;
+			this.status = status;
+			this.error = error;
+			this.elapsedMs = elapsedMs;
+		}
+
+		static Result succeeded(final String ipAddress, final long elapsedMs) {
+			return new Result(ipAddress, SUCCEEDED, null, elapsedMs);
+		}
+
+		static Result failed(final String ipAddress, final Throwable error,
+				final long elapsedMs) {
+			return new Result(ipAddress, FAILED, error, elapsedMs);
+		}
+
+		static Result timedOut(final String ipAddress, final long elapsedMs) {
+			return new Result(ipAddress, TIMED_OUT, null, elapsedMs);
+		}
+
+		static Result notAttempted(final String ipAddress,
+				final long elapsedMs) {
+			return new Result(ipAddress, NOT_ATTEMPTED, null, elapsedMs);
+		}
+
+		public String getIPAddress() {
+			return ipAddress;
+		}
+
+		/**
+		 * @return one of {@link #SUCCEEDED}, {@link #FAILED}, 
+		 *         {@link #TIMED_OUT} or {@link #NOT_ATTEMPTED} if the box was 
+		 *         still waiting for a thread at the deadline
+		 */
+		public String getStatus() {
+			return status;
+		}
+
+		public boolean isSucceeded() {
+			return SUCCEEDED.equals(status);
+		}
+
+		/**
+		 * @return the cause of failure, null unless {@link #FAILED}
+		 */
+		public Throwable getError() {
+			return error;
+		}
+
+		/**
+		 * @return milliseconds from the start of the dispatch to the outcome
+		 */
+		public long getElapsedMs() {
+			return elapsedMs;
+		}
+
+		JSONObject toJSON() {
+			try {
+				final JSONObject json = new JSONObject();
+				json.put("ip", ipAddress);
+				json.put("status", status);
+				json.put("elapsedMs", elapsedMs);
+				if (error != null) {
+					json.put("error", String.valueOf(error.getMessage()));
+				}
+				return json;
+			} catch (final JSONException exception) {
+				throw new IllegalStateException("Unable to export result",
+						exception);
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return ipAddress + " " + status + " in " + elapsedMs + "ms"
+					+ (error == null ? "" : ": " + error.getMessage());
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package com.tvblob.fandango.argo;
+
+/**
+ * Persistent storage for BLOBbox sessions, so that a client created after 
+ * the process restarts may resume the Jabsorb session instead of repeating 
+ * the validation and login handshake, and for the capabilities of the 
+ * firmware versions seen, see {@link ArgoCapabilities}.
+ * 
+ * Sessions passed to the store are already encrypted and authenticated, 
+ * implementations only need to keep the values, privately: the store also 
+ * keeps the random secret the sessions are encrypted with.
+ */
+public interface ArgoSessionStore {
+
+	/**
+	 * @param key
+	 * @return the value saved for key, null if none
+	 */
+	String load(String key);
+
+	/**
+	 * @param key
+	 * @param value
+	 */
+	void save(String key, String value);
+
+	/**
+	 * Forget the value saved for key
+	 * 
+	 * @param key
+	 */
+	void remove(String key);
+}
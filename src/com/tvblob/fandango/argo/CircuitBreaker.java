@@ -0,0 +1,135 @@
+package com.tvblob.fandango.argo;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tracks communication failures for a BLOBbox so that, once the box is 
+ * known to be down, calls fail immediately instead of each waiting for 
+ * the full timeout.
+ * 
+ * After {@link #DEFAULT_FAILURE_THRESHOLD} consecutive failures the breaker
+ * opens and rejects calls for {@link #DEFAULT_OPEN_TIME_MS}. Then a single 
+ * trial call is let through: success closes the breaker, failure opens it 
+ * again. A trial whose outcome is not recorded within the open time is 
+ * given up, and another trial call is let through.
+ * 
+ * One breaker is shared by all clients of the same box, see 
+ * {@link #forHost(String)}.
+ */
+public class CircuitBreaker {
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 2;
+	public static final long DEFAULT_OPEN_TIME_MS = 30000;
+
+	private static final Map<String, CircuitBreaker> BREAKERS = new HashMap<String, CircuitBreaker>();
+
+	private final String host;
+	private final int failureThreshold;
+	private final long openTimeMs;
+
+	private int consecutiveFailures = 0;
+	private long openUntil = 0;
+	private boolean trialInProgress = false;
+	private long trialStart = 0;
+
+	/**
+	 * @param host
+	 * @param failureThreshold
+	 * @param openTimeMs
+	 */
+	public CircuitBreaker(final String host, final int failureThreshold,
+			final long openTimeMs) {
+		this.host = host;
+		this.failureThreshold = failureThreshold;
+		this.openTimeMs = openTimeMs;
+	}
+
+	/**
+	 * The breaker shared by all clients of the box at host
+	 * 
+	 * @param host
+	 * @return {@link CircuitBreaker}
+	 */
+	public static CircuitBreaker forHost(final String host) {
+		synchronized (BREAKERS) {
+			CircuitBreaker breaker = BREAKERS.get(host);
+			if (breaker == null) {
+				breaker = new CircuitBreaker(host, DEFAULT_FAILURE_THRESHOLD,
+						DEFAULT_OPEN_TIME_MS);
+				BREAKERS.put(host, breaker);
+			}
+			return breaker;
+		}
+	}
+
+	/**
+	 * True iff a call may be made now. While open, at most one trial call 
+	 * is allowed once the open time has elapsed, and another once the open
+	 * time has elapsed again without an outcome of the trial.
+	 * 
+	 * @return boolean
+	 */
+	public synchronized boolean allowRequest() {
+		if (openUntil == 0) {
+			return true;
+		}
+		final long now = System.currentTimeMillis();
+		if (now >= openUntil
+				&& (!trialInProgress || now >= trialStart + openTimeMs)) {
+			trialInProgress = true;
+			trialStart = now;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The box answered
+	 */
+	public synchronized void recordSuccess() {
+		consecutiveFailures = 0;
+		openUntil = 0;
+		trialInProgress = false;
+	}
+
+	/**
+	 * The box could not be reached
+	 */
+	public synchronized void recordFailure() {
+		consecutiveFailures++;
+		if (trialInProgress || consecutiveFailures >= failureThreshold) {
+			openUntil = System.currentTimeMillis() + openTimeMs;
+		}
+		trialInProgress = false;
+	}
+
+	/**
+	 * Forget past failures, e.g. when the user explicitly asks to check the
+	 * box
+	 */
+	public synchronized void reset() {
+		recordSuccess();
+	}
+
+	/**
+	 * @return true iff calls are currently rejected
+	 */
+	public synchronized boolean isOpen() {
+		return openUntil != 0 && System.currentTimeMillis() < openUntil;
+	}
+
+	/**
+	 * @return milliseconds until a trial call is allowed, 0 if closed
+	 */
+	public synchronized long getRemainingOpenTime() {
+		return Math.max(0, openUntil - System.currentTimeMillis());
+	}
+
+	/**
+	 * @return the host
+	 */
+	public String getHost() {
+		return host;
+	}
+}
@@ -0,0 +1,24 @@
+package com.tvblob.fandango.argo;
+
+import java.io.IOException;
+
+/**
+ * Cause of the failure of a call which was not sent because the 
+ * {@link CircuitBreaker} of the BLOBbox is open. Being an IOException it
+ * counts as a communication failure, see 
+ * {@link RetryPolicy#isCommunicationFailure(org.alexd.jsonrpc.JSONRPCException)}.
+ */
+public class CircuitOpenException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param host
+	 * @param remainingOpenTime milliseconds until a request is let through
+	 */
+	public CircuitOpenException(final String host,
+			final long remainingOpenTime) {
+		super("BLOBbox at " + host + " is unreachable, not retrying for "
+				+ remainingOpenTime + "ms");
+	}
+}
@@ -1,27 +1,56 @@
 package com.tvblob.fandango.argo;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 
 import org.alexd.jsonrpc.JSONRPCException;
 import org.alexd.jsonrpc.JSONRPCHttpClient;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.CookieStore;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
 /**
  * {@link JSONRPCHttpClient} which also provides a {@link #performPost(String)} 
  * method useful for Jabsorb HTTP Session setup.
  * 
+ * Calls are subject to the client's {@link RetryPolicy} and, if one has 
+ * been set, to a {@link CircuitBreaker} which fails calls immediately while 
+ * the box is known to be unreachable. Batches are subject to the circuit 
+ * breaker but never retried.
+ * 
+ * If {@link AdaptiveTimeouts} have been set, the round trip time of each
+ * request is measured and the connection and socket timeouts of the next
+ * requests are derived from them. The timeouts are set on each request, a 
+ * socket timeout set for a method is the least it is given.
+ * 
  * @author Paul Henshaw
  * @created Sep 14, 2011
  * @cvsid $Id$
  */
 public class JabsorbRPCClient extends JSONRPCHttpClient {
 
+	/**
+	 * Name of the cookie identifying the Jabsorb HTTP session
+	 */
+	public static final String SESSION_COOKIE = "JSESSIONID";
+
+	/**
+	 * Name under which a socket timeout may be set for 
+	 * {@link #performPost(String)}, see {@link #setSoTimeout(String, int)}
+	 */
+	public static final String POST_METHOD = "[post]";
+
+	private RetryPolicy retryPolicy = RetryPolicy.NONE;
+	private CircuitBreaker circuitBreaker = null;
+	private AdaptiveTimeouts adaptiveTimeouts = null;
+
 	/**
 	 * Construct {@link JSONRPCHttpClient} with uri
 	 * 
@@ -31,29 +60,284 @@ public class JabsorbRPCClient extends JSONRPCHttpClient {
 		super(uri);
 	}
 
+	/**
+	 * Construct {@link JSONRPCHttpClient} with uri, using up to 
+	 * maxConnections concurrent connections
+	 * 
+	 * @param uri
+	 * @param maxConnections
+	 */
+	public JabsorbRPCClient(final String uri, final int maxConnections) {
+		super(uri, maxConnections);
+	}
+
 	/**
 	 * Perform a simple post to the given url. This method may be used to 
 	 * call a JSP/Servlet which loads objects into the HTTP Session. 
 	 * 
+	 * The response entity is consumed so that the connection may be reused, 
+	 * only the status line and headers of the returned response are valid.
+	 * 
 	 * @param url
 	 * @return 
 	 */
 	public HttpResponse performPost(final String url) throws JSONRPCException {
+		checkCircuit();
+		boolean reached = false;
+		try {
+			final HttpPost request = createPost(url);
+			request.setParams(createRequestParams(
+					getConnectionTimeout(POST_METHOD), getSoTimeout(POST_METHOD)));
+			acquireConnection();
+			try {
+				final HttpResponse response = execute(request);
+				final HttpEntity entity = response.getEntity();
+				if (entity != null) {
+					entity.consumeContent();
+				}
+				reached = true;
+				return response;
+			} catch (final ClientProtocolException exception) {
+				throw new JSONRPCException("HTTP error", exception);
+
+			} catch (final IOException exception) {
+				throw new JSONRPCException("HTTP error", exception);
+			} finally {
+				releaseConnection();
+			}
+		} finally {
+			recordOutcome(reached);
+		}
+	}
 
-		final HttpPost request = new HttpPost(url);
-		final HttpParams params = new BasicHttpParams();
-		HttpConnectionParams.setConnectionTimeout(params,
-				getConnectionTimeout());
-		HttpConnectionParams.setSoTimeout(params, getSoTimeout());
-		HttpProtocolParams.setVersion(params, PROTOCOL_VERSION);
-		request.setParams(params);
+	/* (non-Javadoc)
+	 * @see org.alexd.jsonrpc.JSONRPCHttpClient#getConnectionTimeout(java.lang.String)
+	 */
+	@Override
+	protected int getConnectionTimeout(final String method) {
+		final AdaptiveTimeouts timeouts = adaptiveTimeouts;
+		if (timeouts == null) {
+			return super.getConnectionTimeout(method);
+		}
+		return timeouts.getConnectionTimeout();
+	}
+
+	/**
+	 * With {@link AdaptiveTimeouts}, the read timeout adapted to the box but
+	 * no less than the timeout set for method, or for all methods
+	 * 
+	 * @see org.alexd.jsonrpc.JSONRPCClient#getSoTimeout(java.lang.String)
+	 */
+	@Override
+	public int getSoTimeout(final String method) {
+		final AdaptiveTimeouts timeouts = adaptiveTimeouts;
+		if (timeouts == null) {
+			return super.getSoTimeout(method);
+		}
+		return Math.max(timeouts.getReadTimeout(), super.getSoTimeout(method));
+	}
+
+	/* (non-Javadoc)
+	 * @see org.alexd.jsonrpc.JSONRPCHttpClient#execute(org.apache.http.client.methods.HttpUriRequest)
+	 */
+	@Override
+	protected HttpResponse execute(final HttpUriRequest request)
+			throws IOException {
+		final AdaptiveTimeouts timeouts = adaptiveTimeouts;
+		if (timeouts == null) {
+			return super.execute(request);
+		}
+		final long start = System.currentTimeMillis();
 		try {
-			return getHTTPClient().execute(request);
-		} catch (final ClientProtocolException exception) {
-			throw new JSONRPCException("HTTP error", exception);
+			final HttpResponse response = super.execute(request);
+			timeouts.recordRoundTrip(System.currentTimeMillis() - start);
+			return response;
+		} catch (final InterruptedIOException exception) {
+			// Connection and socket timeouts
+			timeouts.recordTimeout();
+			throw exception;
+		}
+	}
+
+	/**
+	 * Send the request subject to the circuit breaker and retry policy. 
+	 * Cached responses and calls coalesced with an identical call in flight
+	 * do not get here: the breaker and the retries apply once per request 
+	 * actually sent.
+	 * 
+	 * @see org.alexd.jsonrpc.JSONRPCHttpClient#doJSONRequest(int, java.lang.String, java.lang.Object[])
+	 */
+	@Override
+	protected JSONObject doJSONRequest(final int id, final String method,
+			final Object[] params) throws JSONRPCException {
+		int attempt = 1;
+		while (true) {
+			checkCircuit();
+			boolean reached = false;
+			JSONRPCException failure;
+			try {
+				final JSONObject response = super.doJSONRequest(id, method,
+						params);
+				reached = true;
+				return response;
+			} catch (final JSONRPCException exception) {
+				// The box answered, albeit with an error, unless it could not
+				// be reached
+				reached = !RetryPolicy.isCommunicationFailure(exception);
+				failure = exception;
+			} finally {
+				recordOutcome(reached);
+			}
+			if (reached || !retryPolicy.shouldRetry(method, failure, attempt)) {
+				throw failure;
+			}
+			pause(retryPolicy.getDelay(attempt));
+			attempt++;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.alexd.jsonrpc.JSONRPCHttpClient#doJSONBatchRequest(org.json.JSONArray)
+	 */
+	@Override
+	protected JSONArray doJSONBatchRequest(final JSONArray jsonRequests)
+			throws JSONRPCException {
+		checkCircuit();
+		boolean reached = false;
+		try {
+			final JSONArray responses = super.doJSONBatchRequest(jsonRequests);
+			reached = true;
+			return responses;
+		} catch (final JSONRPCException exception) {
+			reached = !RetryPolicy.isCommunicationFailure(exception);
+			throw exception;
+		} finally {
+			recordOutcome(reached);
+		}
+	}
+
+	/**
+	 * @param delay
+	 * @throws JSONRPCException if interrupted
+	 */
+	private static void pause(final long delay) throws JSONRPCException {
+		try {
+			Thread.sleep(delay);
+		} catch (final InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			throw new JSONRPCException("Interrupted before retry", exception);
+		}
+	}
 
-		} catch (final IOException exception) {
-			throw new JSONRPCException("HTTP error", exception);
+	/**
+	 * @throws JSONRPCException caused by a {@link CircuitOpenException} if 
+	 *         the circuit breaker is open
+	 */
+	private void checkCircuit() throws JSONRPCException {
+		if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+			final CircuitOpenException cause = new CircuitOpenException(
+					circuitBreaker.getHost(), circuitBreaker
+							.getRemainingOpenTime());
+			throw new JSONRPCException(cause.getMessage(), cause);
+		}
+	}
+
+	/**
+	 * Record the outcome of a request let through by 
+	 * {@link #checkCircuit()}. Every such request must record its outcome, 
+	 * also when it ends unexpectedly (e.g. interrupted or a runtime 
+	 * exception), which counts as a failure: otherwise a trial call would 
+	 * keep the breaker half open.
+	 * 
+	 * @param reached true iff the box answered, even with an error
+	 */
+	private void recordOutcome(final boolean reached) {
+		if (circuitBreaker == null) {
+			return;
+		}
+		if (reached) {
+			circuitBreaker.recordSuccess();
+		} else {
+			circuitBreaker.recordFailure();
+		}
+	}
+
+	/**
+	 * @return the cookie identifying the Jabsorb HTTP session, null if no
+	 *         session has been set up
+	 */
+	public Cookie getSessionCookie() {
+		for (final Cookie cookie : getCookieStore().getCookies()) {
+			if (SESSION_COOKIE.equalsIgnoreCase(cookie.getName())) {
+				return cookie;
+			}
 		}
+		return null;
+	}
+
+	/**
+	 * Use the given Jabsorb HTTP session for subsequent calls
+	 * 
+	 * @param cookie
+	 */
+	public void setSessionCookie(final Cookie cookie) {
+		getCookieStore().addCookie(cookie);
+	}
+
+	/**
+	 * Forget all cookies, and so the Jabsorb HTTP session
+	 */
+	public void clearCookies() {
+		getCookieStore().clear();
+	}
+
+	/**
+	 * @return {@link CookieStore}
+	 */
+	private CookieStore getCookieStore() {
+		return ((AbstractHttpClient) getHTTPClient()).getCookieStore();
+	}
+
+	/**
+	 * @return the retryPolicy
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * @param retryPolicy the retryPolicy to set
+	 */
+	public void setRetryPolicy(final RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * @return the circuitBreaker, may be null
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	/**
+	 * @param circuitBreaker the circuitBreaker to set, null for none
+	 */
+	public void setCircuitBreaker(final CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	/**
+	 * @return the adaptiveTimeouts, may be null
+	 */
+	public AdaptiveTimeouts getAdaptiveTimeouts() {
+		return adaptiveTimeouts;
+	}
+
+	/**
+	 * @param adaptiveTimeouts the adaptiveTimeouts to set, null to keep the
+	 *        timeouts set on this client
+	 */
+	public void setAdaptiveTimeouts(final AdaptiveTimeouts adaptiveTimeouts) {
+		this.adaptiveTimeouts = adaptiveTimeouts;
 	}
 }
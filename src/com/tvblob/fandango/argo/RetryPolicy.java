@@ -0,0 +1,119 @@
+package com.tvblob.fandango.argo;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.alexd.jsonrpc.JSONRPCException;
+
+/**
+ * Decides whether a failed Argo call may be repeated, and how long to wait
+ * before doing so.
+ * 
+ * Only calls to idempotent methods which failed because of a communication
+ * error are retried. Timeouts are not retried: a box which has not answered
+ * within the timeout is unlikely to answer the next attempt, and the
+ * {@link CircuitBreaker} takes care of boxes which are down.
+ * 
+ * Delays grow exponentially from the initial delay up to the maximum delay,
+ * with random jitter so that clients do not retry in lock step.
+ */
+public class RetryPolicy {
+
+	/**
+	 * Methods which may safely be called more than once. Not 
+	 * getLoginChallenge: each call issues a new challenge, which must be 
+	 * answered by the login of the same caller.
+	 */
+	public static final Set<String> IDEMPOTENT_METHODS = Collections
+			.unmodifiableSet(new HashSet<String>(Arrays.asList(
+					"version.getVersionString",
+					"authenticationManager.getAuthorizedUserName",
+					"system.listMethods")));
+
+	/**
+	 * Up to 3 attempts, waiting 200ms then 400ms (+/- 50%)
+	 */
+	public static final RetryPolicy DEFAULT = new RetryPolicy(3, 200, 2000,
+			0.5, IDEMPOTENT_METHODS);
+
+	/**
+	 * Never retry
+	 */
+	public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 0,
+			Collections.<String> emptySet());
+
+	private final int maxAttempts;
+	private final long initialDelayMs;
+	private final long maxDelayMs;
+	private final double jitter;
+	private final Set<String> idempotentMethods;
+	private final Random random = new Random();
+
+	/**
+	 * @param maxAttempts total number of attempts, including the first
+	 * @param initialDelayMs delay before the first retry
+	 * @param maxDelayMs maximum delay between attempts
+	 * @param jitter fraction of the delay by which it is randomly varied
+	 * @param idempotentMethods methods which may be retried
+	 */
+	public RetryPolicy(final int maxAttempts, final long initialDelayMs,
+			final long maxDelayMs, final double jitter,
+			final Set<String> idempotentMethods) {
+		this.maxAttempts = maxAttempts;
+		this.initialDelayMs = initialDelayMs;
+		this.maxDelayMs = maxDelayMs;
+		this.jitter = jitter;
+		this.idempotentMethods = idempotentMethods;
+	}
+
+	/**
+	 * True iff method may be called again after failing with exception 
+	 * on the given attempt
+	 * 
+	 * @param method
+	 * @param exception
+	 * @param attempt number of attempts made so far
+	 * @return boolean
+	 */
+	public boolean shouldRetry(final String method,
+			final JSONRPCException exception, final int attempt) {
+		return attempt < maxAttempts && idempotentMethods.contains(method)
+				&& isCommunicationFailure(exception)
+				&& !(exception.getCause() instanceof InterruptedIOException);
+	}
+
+	/**
+	 * @param attempt number of attempts made so far
+	 * @return milliseconds to wait before the next attempt
+	 */
+	public long getDelay(final int attempt) {
+		long delay = initialDelayMs;
+		for (int i = 1; i < attempt && delay < maxDelayMs; i++) {
+			delay *= 2;
+		}
+		delay = Math.min(delay, maxDelayMs);
+		final double variation;
+		synchronized (random) {
+			variation = (random.nextDouble() * 2 - 1) * jitter;
+		}
+		return Math.max(0, Math.round(delay * (1 + variation)));
+	}
+
+	/**
+	 * True iff the call failed because the box could not be reached, 
+	 * rather than because the box reported an error. This includes calls 
+	 * not sent because the {@link CircuitBreaker} is open.
+	 * 
+	 * @param exception
+	 * @return boolean
+	 */
+	public static boolean isCommunicationFailure(
+			final JSONRPCException exception) {
+		return exception.getCause() instanceof IOException;
+	}
+}
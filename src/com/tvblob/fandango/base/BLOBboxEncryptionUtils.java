@@ -1,8 +1,15 @@
 package com.tvblob.fandango.base;
 
 import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Static methods providing basic cryptographic functions.  
@@ -17,6 +24,19 @@ import java.security.NoSuchAlgorithmException;
 public final class BLOBboxEncryptionUtils {
 	private static final String SHA_1_ALGORITHM = "SHA-1";
 	private static final String UTF_8_ENCODING = "UTF-8";
+	private static final String AES_ALGORITHM = "AES";
+	private static final String AES_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+	private static final int AES_BLOCK_SIZE = 16;
+	private static final int AES_KEY_SIZE = 16;
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+	private static final int MAC_SIZE = 32;
+	private static final int SECRET_SIZE = 32;
+
+	/**
+	 * Size in bytes of the keys used by {@link #encrypt(String, byte[])}: 
+	 * an AES key followed by a MAC key
+	 */
+	public static final int KEY_SIZE = 32;
 
 	/**
 	 * No public constructor - use static methods
@@ -72,6 +92,135 @@ public final class BLOBboxEncryptionUtils {
 		return MessageDigest.getInstance(algorithm).digest(byteArray);
 	}
 
+	/**
+	 * @return a new random secret for {@link #deriveKey(byte[], String)}
+	 */
+	public static byte[] generateSecret() {
+		final byte[] secret = new byte[SECRET_SIZE];
+		new SecureRandom().nextBytes(secret);
+		return secret;
+	}
+
+	/**
+	 * Derive a key for {@link #encrypt(String, byte[])} from a random 
+	 * secret and a context, e.g. the credentials a message belongs to: a 
+	 * message encrypted for one context fails authentication in another.
+	 * 
+	 * @param secret random secret, see {@link #generateSecret()}
+	 * @param context
+	 * @return key
+	 * @throws GeneralSecurityException
+	 * @throws UnsupportedEncodingException
+	 */
+	public static byte[] deriveKey(final byte[] secret, final String context)
+			throws GeneralSecurityException, UnsupportedEncodingException {
+		final byte[] data = getByteArray(context);
+		return getHMAC(secret, data, 0, data.length);
+	}
+
+	/**
+	 * Encrypt message with AES/CBC and authenticate the result with 
+	 * HMAC-SHA256 (encrypt-then-MAC). A random initialisation vector is 
+	 * used, so encrypting the same message twice gives different results.
+	 * 
+	 * @param message
+	 * @param key key of {@link #KEY_SIZE} bytes, see 
+	 *        {@link #deriveKey(byte[], String)}
+	 * @return String hex encoded initialisation vector, cipher text and MAC
+	 * @throws GeneralSecurityException
+	 * @throws UnsupportedEncodingException
+	 */
+	public static String encrypt(final String message, final byte[] key)
+			throws GeneralSecurityException, UnsupportedEncodingException {
+		final byte[] iv = new byte[AES_BLOCK_SIZE];
+		new SecureRandom().nextBytes(iv);
+
+		final Cipher cipher = Cipher.getInstance(AES_TRANSFORMATION);
+		cipher.init(Cipher.ENCRYPT_MODE, getAESKey(key),
+				new IvParameterSpec(iv));
+		final byte[] cipherText = cipher.doFinal(getByteArray(message));
+
+		final byte[] result = new byte[iv.length + cipherText.length
+				+ MAC_SIZE];
+		System.arraycopy(iv, 0, result, 0, iv.length);
+		System.arraycopy(cipherText, 0, result, iv.length, cipherText.length);
+		final byte[] mac = getHMAC(getMACKey(key), result, 0, iv.length
+				+ cipherText.length);
+		System.arraycopy(mac, 0, result, iv.length + cipherText.length,
+				MAC_SIZE);
+		return StringUtilities.bytesToHexString(result);
+	}
+
+	/**
+	 * Decrypt a String produced by {@link #encrypt(String, byte[])}, once 
+	 * its MAC has been checked
+	 * 
+	 * @param encrypted
+	 * @param key the key used to encrypt the message
+	 * @return String the original message
+	 * @throws GeneralSecurityException if key is wrong or the data is 
+	 * corrupt or has been tampered with
+	 * @throws UnsupportedEncodingException
+	 */
+	public static String decrypt(final String encrypted, final byte[] key)
+			throws GeneralSecurityException, UnsupportedEncodingException {
+		if (encrypted.length() < (AES_BLOCK_SIZE * 2 + MAC_SIZE) * 2
+				|| !StringUtilities.isValidHexString(encrypted)) {
+			throw new GeneralSecurityException("Invalid encrypted message");
+		}
+		final byte[] data = StringUtilities.hexStringToBytes(encrypted);
+		final int macOffset = data.length - MAC_SIZE;
+		final byte[] mac = getHMAC(getMACKey(key), data, 0, macOffset);
+		int difference = 0;
+		for (int i = 0; i < MAC_SIZE; i++) {
+			difference |= mac[i] ^ data[macOffset + i];
+		}
+		if (difference != 0) {
+			throw new GeneralSecurityException("Message authentication failed");
+		}
+
+		final Cipher cipher = Cipher.getInstance(AES_TRANSFORMATION);
+		cipher.init(Cipher.DECRYPT_MODE, getAESKey(key),
+				new IvParameterSpec(data, 0, AES_BLOCK_SIZE));
+		return new String(cipher.doFinal(data, AES_BLOCK_SIZE, macOffset
+				- AES_BLOCK_SIZE), UTF_8_ENCODING);
+	}
+
+	/**
+	 * @param key
+	 * @return 128 bit AES key, the first half of key
+	 */
+	private static SecretKeySpec getAESKey(final byte[] key) {
+		return new SecretKeySpec(key, 0, AES_KEY_SIZE, AES_ALGORITHM);
+	}
+
+	/**
+	 * @param key
+	 * @return MAC key, the second half of key
+	 */
+	private static byte[] getMACKey(final byte[] key) {
+		final byte[] macKey = new byte[KEY_SIZE - AES_KEY_SIZE];
+		System.arraycopy(key, AES_KEY_SIZE, macKey, 0, macKey.length);
+		return macKey;
+	}
+
+	/**
+	 * @param key
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return HMAC-SHA256 of length bytes of data from offset
+	 * @throws GeneralSecurityException
+	 */
+	private static byte[] getHMAC(final byte[] key, final byte[] data,
+			final int offset, final int length)
+			throws GeneralSecurityException {
+		final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+		mac.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+		mac.update(data, offset, length);
+		return mac.doFinal();
+	}
+
 	/**
 	 * @param message
 	 * @return byte[]
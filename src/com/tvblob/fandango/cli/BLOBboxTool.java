@@ -0,0 +1,369 @@
+package com.tvblob.fandango.cli;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.tvblob.fandango.argo.ArgoClient;
+import com.tvblob.fandango.argo.ArgoException;
+import com.tvblob.fandango.argo.ArgoFleet;
+import com.tvblob.fandango.argo.ArgoFleetReport;
+import com.tvblob.fandango.ssdp.SSDP;
+import com.tvblob.fandango.ssdp.UPnPDevice;
+
+/**
+ * Command line tool for scripting BLOBboxes from a plain JVM, e.g. to drive
+ * a large deployment from a server.
+ *
+ * <pre>
+ * BLOBboxTool [options] command [arguments]
+ *
+ * options:
+ *   -u user        user name, default none
+ *   -p password    password, default none
+ *   -t ms          time allowed to each box, default 15000
+ *   -n threads     boxes contacted at the same time, default 16
+ *   -v             log BLOBbox communication
+ *
+ * commands:
+ *   discover                           list the BLOBboxes found with SSDP
+ *   play boxes uri [title [desc]]      play uri
+ *   browse boxes url                   open url in the browser
+ *   download boxes url [mimetype]      add url to the downloads
+ *   key boxes key...                   send remote control keys
+ *   batch                              read commands from standard input,
+ *                                      one per line, and run them in parallel
+ *
+ * boxes is a comma separated list of IP addresses, or "all" for the
+ * BLOBboxes found with SSDP
+ * </pre>
+ *
+ * One line is printed per box: the command, the IP address, the outcome
+ * and the time taken. The exit status is 0 if every command succeeded on
+ * every box, 1 if any failed and 2 for usage errors.
+ *
+ * Only the argo, ssdp, base and org.alexd.jsonrpc packages are used, so the
+ * tool runs without Android given the Apache HttpClient and org.json
+ * libraries on the class path.
+ */
+public final class BLOBboxTool {
+
+	private static final int EXIT_OK = 0;
+	private static final int EXIT_FAILED = 1;
+	private static final int EXIT_USAGE = 2;
+
+	// Held so that the level set on it is not lost with the logger
+	private static final Logger LOGGER = Logger
+			.getLogger("com.tvblob.fandango");
+
+	private static final String ALL_BOXES = "all";
+	private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+
+	private String userName = "";
+	private String password = "";
+	private long deadlineMs = ArgoFleet.DEFAULT_DEADLINE_MS;
+	private int threads = ArgoFleet.DEFAULT_THREADS;
+	private boolean verbose = false;
+
+	private ArgoFleet fleet = null;
+	private List<String> discovered = null;
+
+	/**
+	 * Use {@link #main(String[])}
+	 */
+	private BLOBboxTool() {
+		// Intentionally empty
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(final String[] args) {
+		System.exit(new BLOBboxTool().run(args));
+	}
+
+	/**
+	 * @param args
+	 * @return exit status
+	 */
+	private int run(final String[] args) {
+		int index = 0;
+		try {
+			while (index < args.length && args[index].startsWith("-")) {
+				final String option = args[index++];
+				if ("-v".equals(option)) {
+					verbose = true;
+					continue;
+				}
+				if (index == args.length) {
+					throw new IllegalArgumentException("Missing value for "
+							+ option);
+				}
+				final String value = args[index++];
+				if ("-u".equals(option)) {
+					userName = value;
+				} else if ("-p".equals(option)) {
+					password = value;
+				} else if ("-t".equals(option)) {
+					deadlineMs = Long.parseLong(value);
+				} else if ("-n".equals(option)) {
+					threads = Integer.parseInt(value);
+					if (threads < 1) {
+						throw new IllegalArgumentException(
+								"threads must be positive: " + threads);
+					}
+				} else {
+					throw new IllegalArgumentException("Unknown option "
+							+ option);
+				}
+			}
+			if (index == args.length) {
+				throw new IllegalArgumentException("Missing command");
+			}
+		} catch (final IllegalArgumentException exception) {
+			return usage(exception.getMessage());
+		}
+
+		LOGGER.setLevel(verbose ? Level.ALL : Level.WARNING);
+
+		final List<String> command = Arrays.asList(args).subList(index,
+				args.length);
+		fleet = new ArgoFleet(userName, password, threads);
+		try {
+			if ("discover".equals(command.get(0))) {
+				return discover();
+			}
+			if ("batch".equals(command.get(0))) {
+				return batch();
+			}
+			return execute(command);
+		} catch (final IllegalArgumentException exception) {
+			return usage(exception.getMessage());
+		} catch (final IOException exception) {
+			System.err.println(exception);
+			return EXIT_FAILED;
+		} finally {
+			fleet.shutdown();
+		}
+	}
+
+	/**
+	 * List the BLOBboxes found on the LAN, their names are fetched while
+	 * the search runs
+	 *
+	 * @return exit status
+	 * @throws IOException
+	 */
+	private int discover() throws IOException {
+		for (final UPnPDevice device : SSDP.findBlobboxDevices()) {
+			String name;
+			try {
+				name = device.getFriendlyName();
+			} catch (final IOException exception) {
+				name = null;
+			}
+			System.out.println(device.getHost() + "\t"
+					+ (name == null ? "" : name));
+		}
+		return EXIT_OK;
+	}
+
+	/**
+	 * Run the commands read from standard input in parallel, blank lines
+	 * and lines starting with # are ignored
+	 *
+	 * @return exit status
+	 * @throws IOException
+	 */
+	private int batch() throws IOException {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(
+				System.in));
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				final List<String> command = tokenize(line);
+				if (command.isEmpty() || command.get(0).startsWith("#")) {
+					continue;
+				}
+				final int number = lineNumber;
+				results.add(executor.submit(new Callable<Integer>() {
+					public Integer call() {
+						try {
+							return Integer.valueOf(execute(command));
+						} catch (final IllegalArgumentException exception) {
+							System.err.println("line " + number + ": "
+									+ exception.getMessage());
+							return Integer.valueOf(EXIT_USAGE);
+						} catch (final IOException exception) {
+							System.err.println("line " + number + ": "
+									+ exception);
+							return Integer.valueOf(EXIT_FAILED);
+						}
+					}
+				}));
+			}
+
+			int status = EXIT_OK;
+			for (final Future<Integer> result : results) {
+				try {
+					status = Math.max(status, result.get().intValue());
+				} catch (final Exception exception) {
+					System.err.println(exception);
+					status = Math.max(status, EXIT_FAILED);
+				}
+			}
+			return status;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Run a single play, browse, download or key command
+	 *
+	 * @param command
+	 * @return exit status
+	 * @throws IOException if boxes could not be discovered
+	 */
+	private int execute(final List<String> command) throws IOException {
+		final String name = command.get(0);
+		if (command.size() < 3) {
+			throw new IllegalArgumentException("Missing arguments for "
+					+ name);
+		}
+		final List<String> boxes = getBoxes(command.get(1));
+		final String target = command.get(2);
+
+		final ArgoFleetReport report;
+		if ("play".equals(name)) {
+			report = fleet.playURI(boxes, target, argument(command, 3,
+					target), argument(command, 4, ""), deadlineMs);
+		} else if ("browse".equals(name)) {
+			report = fleet.browseURL(boxes, target, deadlineMs);
+		} else if ("download".equals(name)) {
+			report = fleet.addDownload(boxes, target, argument(command, 3,
+					DEFAULT_MIME_TYPE), deadlineMs);
+		} else if ("key".equals(name)) {
+			final String[] keys = command.subList(2, command.size()).toArray(
+					new String[command.size() - 2]);
+			report = fleet.dispatch(boxes, new ArgoFleet.Operation() {
+				public void perform(final ArgoClient client)
+						throws ArgoException {
+					client.sendRemoteControlKeys(keys);
+				}
+			}, deadlineMs);
+		} else {
+			throw new IllegalArgumentException("Unknown command " + name);
+		}
+
+		print(name, report);
+		return report.isAllSucceeded() ? EXIT_OK : EXIT_FAILED;
+	}
+
+	/**
+	 * @param boxes comma separated IP addresses or {@link #ALL_BOXES}
+	 * @return IP addresses
+	 * @throws IOException
+	 */
+	private List<String> getBoxes(final String boxes) throws IOException {
+		if (!ALL_BOXES.equals(boxes)) {
+			return Arrays.asList(boxes.split(","));
+		}
+		// Discover once, batch commands for all boxes share the result
+		synchronized (this) {
+			if (discovered == null) {
+				discovered = new ArrayList<String>();
+				for (final UPnPDevice device : SSDP.findBlobboxDevices()) {
+					if (device.getHost() != null) {
+						discovered.add(device.getHost());
+					}
+				}
+			}
+			return discovered;
+		}
+	}
+
+	private static String argument(final List<String> command,
+			final int index, final String defaultValue) {
+		return index < command.size() ? command.get(index) : defaultValue;
+	}
+
+	private static void print(final String name, final ArgoFleetReport report) {
+		final StringBuilder builder = new StringBuilder();
+		for (final ArgoFleetReport.Result result : report.getResults()) {
+			builder.append(name).append('\t').append(result.getIPAddress())
+					.append('\t').append(result.getStatus()).append('\t')
+					.append(result.getElapsedMs()).append("ms");
+			if (result.getError() != null) {
+				builder.append('\t').append(result.getError().getMessage());
+			}
+			builder.append('\n');
+		}
+		// Lines of parallel commands must not interleave
+		synchronized (System.out) {
+			System.out.print(builder);
+			System.out.flush();
+		}
+	}
+
+	/**
+	 * Split line at white space, double quotes group words
+	 *
+	 * @param line
+	 * @return words
+	 */
+	static List<String> tokenize(final String line) {
+		final List<String> words = new ArrayList<String>();
+		final StringBuilder word = new StringBuilder();
+		boolean quoted = false;
+		boolean inWord = false;
+		for (int i = 0; i < line.length(); i++) {
+			final char c = line.charAt(i);
+			if (c == '"') {
+				quoted = !quoted;
+				inWord = true;
+			} else if (Character.isWhitespace(c) && !quoted) {
+				if (inWord) {
+					words.add(word.toString());
+					word.setLength(0);
+					inWord = false;
+				}
+			} else {
+				word.append(c);
+				inWord = true;
+			}
+		}
+		if (inWord) {
+			words.add(word.toString());
+		}
+		return words;
+	}
+
+	private static int usage(final String message) {
+		System.err.println(message);
+		System.err.println("usage: BLOBboxTool [-u user] [-p password] "
+				+ "[-t ms] [-n threads] [-v] command [arguments]");
+		System.err.println("  discover");
+		System.err.println("  play boxes uri [title [description]]");
+		System.err.println("  browse boxes url");
+		System.err.println("  download boxes url [mimetype]");
+		System.err.println("  key boxes key...");
+		System.err.println("  batch    (commands read from standard input)");
+		System.err.println("boxes: comma separated IP addresses or \""
+				+ ALL_BOXES + "\"");
+		return EXIT_USAGE;
+	}
+}
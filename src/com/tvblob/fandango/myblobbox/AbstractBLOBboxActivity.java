@@ -18,8 +18,10 @@ import android.webkit.MimeTypeMap;
 
 import com.tvblob.fandango.argo.ArgoAuthenticationException;
 import com.tvblob.fandango.argo.ArgoClient;
+import com.tvblob.fandango.argo.ArgoClientCache;
 import com.tvblob.fandango.argo.ArgoCommunicationException;
 import com.tvblob.fandango.argo.ArgoException;
+import com.tvblob.fandango.argo.ArgoSessionStore;
 import com.tvblob.fandango.argo.IncompatibleRemoteDeviceException;
 import com.tvblob.fandango.argo.IncompatibleSoftwareVersionException;
 
@@ -67,9 +69,8 @@ public abstract class AbstractBLOBboxActivity extends Activity {
 				getString(R.string.msg_title_progressdialog),
 				getString(R.string.msg_content_progressdialog), true);
 
-		new Thread() {
+		BackgroundExecutor.execute(new Runnable() {
 
-			@Override
 			public void run() {
 
 				try {
@@ -84,7 +85,7 @@ public abstract class AbstractBLOBboxActivity extends Activity {
 				}
 
 			}
-		}.start();
+		});
 	}
 
 	/**
@@ -102,8 +103,8 @@ public abstract class AbstractBLOBboxActivity extends Activity {
 		}
 
 		try {
-			final ArgoClient client = new ArgoClient(getIP(), getUserName(),
-					getPassword());
+			final ArgoClient client = ArgoClientCache.getClient(getIP(),
+					getUserName(), getPassword(), getSessionStore());
 			performOperation(intent, client);
 			handler.sendEmptyMessage(Constants.OPERATION_OK);
 		} catch (final IncompatibleRemoteDeviceException exception) {
@@ -150,6 +151,19 @@ public abstract class AbstractBLOBboxActivity extends Activity {
 				.getString(Constants.USERNAME_PREF, "");
 	}
 
+	/**
+	 * The store for BLOBbox sessions, null unless the user has chosen to 
+	 * remember sessions
+	 * 
+	 * @return {@link ArgoSessionStore}
+	 */
+	protected ArgoSessionStore getSessionStore() {
+		final boolean remember = PreferenceManager.getDefaultSharedPreferences(
+				getBaseContext()).getBoolean(Constants.REMEMBER_SESSION_PREF,
+				false);
+		return remember ? new PreferencesSessionStore(getBaseContext()) : null;
+	}
+
 	/**
 	 * The BLOBbox IP saved in preferences
 	 * 
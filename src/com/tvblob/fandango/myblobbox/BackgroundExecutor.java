@@ -0,0 +1,38 @@
+package com.tvblob.fandango.myblobbox;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * PACKAGE PRIVATE
+ * 
+ * Runs long running operations (BLOBbox communication, LAN scans) away 
+ * from the UI thread using a small fixed set of threads, so that a burst
+ * of intents does not create a thread per intent.
+ * 
+ * This class is not intended to be instantiated or subclassed.
+ */
+final class BackgroundExecutor {
+
+	private static final int THREADS = 2;
+
+	private static final ExecutorService EXECUTOR = Executors
+			.newFixedThreadPool(THREADS);
+
+	/**
+	 * No public constructor - use static methods
+	 */
+	private BackgroundExecutor() {
+		// Intentionally empty
+	}
+
+	/**
+	 * Run task on a background thread, tasks are queued if all threads 
+	 * are busy.
+	 * 
+	 * @param task
+	 */
+	static void execute(final Runnable task) {
+		EXECUTOR.execute(task);
+	}
+}
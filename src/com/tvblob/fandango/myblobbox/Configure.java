@@ -1,6 +1,7 @@
 package com.tvblob.fandango.myblobbox;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 
 import android.app.AlertDialog;
@@ -25,12 +26,16 @@ import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 
+import com.tvblob.fandango.argo.AdaptiveTimeouts;
 import com.tvblob.fandango.argo.ArgoAuthenticationException;
-import com.tvblob.fandango.argo.ArgoClient;
+import com.tvblob.fandango.argo.ArgoCapabilities;
+import com.tvblob.fandango.argo.ArgoClientCache;
 import com.tvblob.fandango.argo.ArgoCommunicationException;
+import com.tvblob.fandango.argo.CircuitBreaker;
 import com.tvblob.fandango.argo.IncompatibleRemoteDeviceException;
 import com.tvblob.fandango.argo.IncompatibleSoftwareVersionException;
 import com.tvblob.fandango.ssdp.SSDP;
+import com.tvblob.fandango.ssdp.SSDPListener;
 import com.tvblob.fandango.ssdp.UPnPDevice;
 
 /**
@@ -45,6 +50,9 @@ public class Configure extends PreferenceActivity implements
 
 	private static final String BLOBBOX_URL = "http://www.blobbox.tv/?s=fandango";
 
+	// Time to wait for a BLOBbox to answer a search
+	private static final long SCAN_TIMEOUT_MS = 2000;
+
 	private Handler handler = null;
 
 	/* (non-Javadoc)
@@ -55,6 +63,7 @@ public class Configure extends PreferenceActivity implements
 
 		PreferenceManager.getDefaultSharedPreferences(this)
 				.registerOnSharedPreferenceChangeListener(this);
+		DeviceDiscovery.resume();
 
 		final String ip = PreferenceManager.getDefaultSharedPreferences(
 				getBaseContext()).getString(Constants.IP_PREF, "");
@@ -63,6 +72,13 @@ public class Configure extends PreferenceActivity implements
 		if (ip.length() == 0) {
 			guessBoxIP();
 			//				showWhatIsDialog();
+		} else {
+			// Keep the registry of BLOBboxes up to date while configuring
+			BackgroundExecutor.execute(new Runnable() {
+				public void run() {
+					DeviceDiscovery.start(getBaseContext());
+				}
+			});
 		}
 	}
 
@@ -127,11 +143,11 @@ public class Configure extends PreferenceActivity implements
 			}
 		};
 
-		new Thread() {
+		BackgroundExecutor.execute(new Runnable() {
 			public void run() {
 				scanForDevices(dialog, scanHandler);
 			}
-		}.start();
+		});
 	}
 
 	/**
@@ -140,7 +156,7 @@ public class Configure extends PreferenceActivity implements
 	 */
 	void scanForDevices(final ProgressDialog dialog, final Handler scanHandler) {
 		try {
-			final List<UPnPDevice> boxes = SSDP.findBlobboxDevices();
+			final List<UPnPDevice> boxes = findBlobboxDevices();
 			System.out.println("BOXES=" + boxes);
 			Log.d(Constants.TAG, "BOXES=" + boxes);
 			if (boxes.size() == 0) {
@@ -168,6 +184,32 @@ public class Configure extends PreferenceActivity implements
 		}
 	}
 
+	/**
+	 * BLOBboxes already known to the SSDP listener, otherwise the result of 
+	 * a search. A one-off scan, which stops at the first BLOBbox, is used 
+	 * only if the listener cannot run.
+	 * 
+	 * @return List of {@link UPnPDevice}
+	 * @throws IOException
+	 */
+	private List<UPnPDevice> findBlobboxDevices() throws IOException {
+		if (!DeviceDiscovery.start(getBaseContext())) {
+			final UPnPDevice box = SSDP.findFirstBlobboxDevice();
+			return box == null ? Collections.<UPnPDevice> emptyList()
+					: Collections.singletonList(box);
+		}
+		final SSDPListener listener = SSDPListener.getDefault();
+		if (listener.getBlobboxDevices().isEmpty()) {
+			listener.search();
+			try {
+				listener.awaitBlobbox(SCAN_TIMEOUT_MS);
+			} catch (final InterruptedException exception) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return listener.getBlobboxDevices();
+	}
+
 	/* Options menu: Only the "Info" item */
 	@Override
 	public boolean onCreateOptionsMenu(final Menu menu) {
@@ -267,6 +309,7 @@ public class Configure extends PreferenceActivity implements
 		super.onPause();
 		PreferenceManager.getDefaultSharedPreferences(this)
 				.unregisterOnSharedPreferenceChangeListener(this);
+		DeviceDiscovery.stop();
 	}
 
 	/* (non-Javadoc)
@@ -283,6 +326,17 @@ public class Configure extends PreferenceActivity implements
 		final String password = sharedPreferences.getString(
 				Constants.PASSWORD_PREF, null);
 
+		final boolean rememberSession = sharedPreferences.getBoolean(
+				Constants.REMEMBER_SESSION_PREF, false);
+
+		if (Constants.REMEMBER_SESSION_PREF.equals(key)) {
+			if (!rememberSession) {
+				new PreferencesSessionStore(getBaseContext()).clear();
+			}
+			// No need to check the box again
+			return;
+		}
+
 		//		handler = new ConfigValidationHandler(ipAddress, getBaseContext());
 		handler = new ValidatePreferencesArgoOperationHandler(ipAddress, this);
 
@@ -290,15 +344,16 @@ public class Configure extends PreferenceActivity implements
 				getString(R.string.msg_title_progressdialog),
 				getString(R.string.msg_content_progressdialog), true);
 
-		new Thread() {
+		BackgroundExecutor.execute(new Runnable() {
 			public void run() {
 				try {
-					checkPrefs(ipAddress, userName, password);
+					checkPrefs(ipAddress, userName, password,
+							rememberSession);
 				} finally {
 					dialog.dismiss();
 				}
 			}
-		}.start();
+		});
 
 	}
 
@@ -308,11 +363,21 @@ public class Configure extends PreferenceActivity implements
 	 * @param ipAddress
 	 * @param userName
 	 * @param password
+	 * @param rememberSession
 	 */
 	void checkPrefs(final String ipAddress, final String userName,
-			final String password) {
+			final String password, final boolean rememberSession) {
+		// Explicit check by the user: probe the box even if recently down
+		CircuitBreaker.forHost(ipAddress).reset();
+		AdaptiveTimeouts.forHost(ipAddress).reset();
+		ArgoCapabilities.forget(ipAddress);
+		// The network or the box may have changed since responses were cached
+		ArgoClientCache.invalidateResponses();
+		ArgoClientCache.invalidate(ipAddress);
 		try {
-			new ArgoClient(ipAddress, userName, password);
+			ArgoClientCache.getClient(ipAddress, userName, password,
+					rememberSession ? new PreferencesSessionStore(
+							getBaseContext()) : null);
 			handler.sendEmptyMessage(Constants.OPERATION_OK);
 		} catch (final IncompatibleRemoteDeviceException exception) {
 			handler.sendEmptyMessage(Constants.INCOMPATIBLE_DEVICE);
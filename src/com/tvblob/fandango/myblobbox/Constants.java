@@ -44,6 +44,11 @@ final class Constants {
 	 */
 	static final String PASSWORD_PREF = "blobbox_password";
 
+	/**
+	 * Name of preference enabling BLOBbox sessions to be saved between runs
+	 */
+	static final String REMEMBER_SESSION_PREF = "blobbox_remember_session";
+
 	/**
 	 * No public constructor - use static members
 	 */
@@ -0,0 +1,91 @@
+package com.tvblob.fandango.myblobbox;
+
+import java.io.IOException;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.util.Log;
+
+import com.tvblob.fandango.ssdp.SSDPListener;
+
+/**
+ * PACKAGE PRIVATE
+ *
+ * Runs the process wide {@link SSDPListener} while holding the Wi-Fi
+ * multicast lock it needs to receive SSDP announcements. The lock costs
+ * battery, so discovery only runs while an activity needs it: between 
+ * {@link #resume()} and {@link #stop()}, which the activity calls from its
+ * onResume() and onPause().
+ *
+ * This class is not intended to be instantiated or subclassed.
+ */
+final class DeviceDiscovery {
+
+	private static WifiManager.MulticastLock multicastLock = null;
+	// False once stopped, so that a start queued before stop() does nothing
+	private static boolean wanted = false;
+
+	/**
+	 * No public constructor - use static methods
+	 */
+	private DeviceDiscovery() {
+		// Intentionally empty
+	}
+
+	/**
+	 * Allow {@link #start(Context)} until the next {@link #stop()}
+	 */
+	static synchronized void resume() {
+		wanted = true;
+	}
+
+	/**
+	 * Start listening for BLOBboxes, if not already listening and not 
+	 * stopped since the last {@link #resume()}. Binds the SSDP port, so must
+	 * not be called on the UI thread.
+	 *
+	 * @param context
+	 * @return true iff the listener is running
+	 */
+	static synchronized boolean start(final Context context) {
+		if (!wanted) {
+			return false;
+		}
+		final SSDPListener listener = SSDPListener.getDefault();
+		if (listener.isRunning()) {
+			return true;
+		}
+		if (multicastLock == null) {
+			final WifiManager wifi = (WifiManager) context
+					.getApplicationContext().getSystemService(
+							Context.WIFI_SERVICE);
+			if (wifi == null) {
+				return false;
+			}
+			multicastLock = wifi.createMulticastLock(Constants.TAG);
+			multicastLock.setReferenceCounted(false);
+		}
+		multicastLock.acquire();
+		try {
+			listener.start();
+			return true;
+		} catch (final IOException exception) {
+			Log.w(Constants.TAG, "Unable to listen for BLOBbox devices: "
+					+ exception);
+			multicastLock.release();
+			return false;
+		}
+	}
+
+	/**
+	 * Stop listening and release the multicast lock, BLOBboxes found so far
+	 * remain known until they expire
+	 */
+	static synchronized void stop() {
+		wanted = false;
+		SSDPListener.getDefault().stop();
+		if (multicastLock != null && multicastLock.isHeld()) {
+			multicastLock.release();
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.tvblob.fandango.myblobbox;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.tvblob.fandango.argo.ArgoSessionStore;
+
+/**
+ * PACKAGE PRIVATE 
+ * 
+ * {@link ArgoSessionStore} which keeps BLOBbox sessions in a private 
+ * preferences file, separate from the user's preferences.
+ */
+final class PreferencesSessionStore implements ArgoSessionStore {
+
+	private static final String PREFS_NAME = "blobbox_sessions";
+
+	private final SharedPreferences prefs;
+
+	/**
+	 * @param context
+	 */
+	PreferencesSessionStore(final Context context) {
+		this.prefs = context.getSharedPreferences(PREFS_NAME,
+				Context.MODE_PRIVATE);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.tvblob.fandango.argo.ArgoSessionStore#load(java.lang.String)
+	 */
+	public String load(final String key) {
+		return prefs.getString(key, null);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.tvblob.fandango.argo.ArgoSessionStore#save(java.lang.String, java.lang.String)
+	 */
+	public void save(final String key, final String value) {
+		prefs.edit().putString(key, value).commit();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.tvblob.fandango.argo.ArgoSessionStore#remove(java.lang.String)
+	 */
+	public void remove(final String key) {
+		prefs.edit().remove(key).commit();
+	}
+
+	/**
+	 * Forget all saved sessions
+	 */
+	void clear() {
+		prefs.edit().clear().commit();
+	}
+}
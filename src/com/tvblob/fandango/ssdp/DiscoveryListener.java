@@ -0,0 +1,16 @@
+package com.tvblob.fandango.ssdp;
+
+/**
+ * Receives the devices found by an SSDP search as their replies arrive,
+ * see {@link SSDP#findBlobboxDevices(DiscoveryListener)}.
+ */
+public interface DiscoveryListener {
+
+	/**
+	 * Called on the searching thread for each device found, once per device
+	 * 
+	 * @param device
+	 * @return true to keep searching, false to stop the search immediately
+	 */
+	boolean deviceFound(UPnPDevice device);
+}
@@ -1,13 +1,23 @@
 package com.tvblob.fandango.ssdp;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.lang.reflect.InvocationTargetException;
+import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
-import java.util.LinkedList;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Simple Service Discovery Protocol (SSDP) utility methods
@@ -22,8 +32,8 @@ import java.util.List;
  */
 public final class SSDP {
 	private static final int TIMEOUT_S = 2; // Timeout in seconds
-	private static final int PORT = 1900;
-	private static final String MCAST_IP = "239.255.255.250";
+	static final int PORT = 1900;
+	static final String MCAST_IP = "239.255.255.250";
 	private static final int REPLY_BUF_SIZE = 1000;
 
 	// We Only want MediaRenderer v1 devices
@@ -49,52 +59,210 @@ public final class SSDP {
 	 * @throws IOException
 	 */
 	public static List<UPnPDevice> findBlobboxDevices() throws IOException {
-		final DatagramSocket msocket = new DatagramSocket(PORT);
+		final List<UPnPDevice> boxes = new ArrayList<UPnPDevice>();
+		findBlobboxDevices(new DiscoveryListener() {
+			public boolean deviceFound(final UPnPDevice device) {
+				boxes.add(device);
+				return true;
+			}
+		});
+		return boxes;
+	}
 
-		// Wait only TIMEOUT seconds when receiving reply packets
-		msocket.setSoTimeout(TIMEOUT_S * 1000);
-		msocket.send(createSearchMessage());
+	/**
+	 * Scan for the first Blobbox device, returns as soon as one replies
+	 * 
+	 * @return {@link UPnPDevice} or null if none replied within the timeout
+	 * @throws IOException
+	 */
+	public static UPnPDevice findFirstBlobboxDevice() throws IOException {
+		final UPnPDevice[] first = new UPnPDevice[1];
+		findBlobboxDevices(new DiscoveryListener() {
+			public boolean deviceFound(final UPnPDevice device) {
+				first[0] = device;
+				return false;
+			}
+		});
+		return first[0];
+	}
 
-		return awaitReplies(msocket);
+	/**
+	 * Scan for Blobbox devices, delivering each to listener as soon as its
+	 * reply arrives. Returns when listener stops the search or the timeout
+	 * has expired.
+	 * 
+	 * The search is sent at once on every network interface which is up and
+	 * supports multicast, from an ephemeral port so as not to collide with
+	 * other SSDP stacks, and the replies from all interfaces are received by
+	 * a single selector. The description of each device starts being
+	 * fetched as soon as its reply arrives.
+	 * 
+	 * @param listener
+	 * @throws IOException if the search could not be sent on any interface
+	 */
+	public static void findBlobboxDevices(final DiscoveryListener listener)
+			throws IOException {
+		final Selector selector = Selector.open();
+		try {
+			search(selector);
+			awaitReplies(selector, listener);
+		} finally {
+			for (final SelectionKey key : selector.keys()) {
+				close(key.channel());
+			}
+			selector.close();
+		}
 	}
 
 	/**
-	 * @return {@link DatagramPacket}
-	 * @throws UnknownHostException
+	 * Send the search from each multicast capable interface address, or
+	 * from the default interface if there are none, registering the
+	 * channels for the replies with selector
+	 * 
+	 * @param selector
+	 * @throws IOException if the search could not be sent at all
 	 */
-	private static DatagramPacket createSearchMessage()
-			throws UnknownHostException {
-		return new DatagramPacket(SEARCH.getBytes(), SEARCH.length(),
-				InetAddress.getByName(MCAST_IP), PORT);
+	private static void search(final Selector selector) throws IOException {
+		final InetSocketAddress group = new InetSocketAddress(MCAST_IP, PORT);
+		final List<InetAddress> addresses = getMulticastAddresses();
+		if (addresses.isEmpty()) {
+			// Let the routing table choose
+			addresses.add(null);
+		}
+
+		IOException failure = null;
+		for (final InetAddress address : addresses) {
+			final DatagramChannel channel = DatagramChannel.open();
+			try {
+				channel.configureBlocking(false);
+				/*
+				 * Binding to the address of an interface makes multicast
+				 * packets leave through that interface
+				 */
+				channel.socket().bind(new InetSocketAddress(address, 0));
+				channel.send(ByteBuffer.wrap(SEARCH.getBytes()), group);
+				channel.register(selector, SelectionKey.OP_READ);
+			} catch (final IOException exception) {
+				// Interface may have gone down, the others may still work
+				close(channel);
+				failure = exception;
+			}
+		}
+		if (selector.keys().isEmpty()) {
+			throw failure;
+		}
 	}
 
 	/**
-	 * @param msocket
-	 * @return List of {@link UPnPDevice}
+	 * @param selector
+	 * @param listener
 	 * @throws IOException
 	 */
-	private static List<UPnPDevice> awaitReplies(final DatagramSocket msocket)
-			throws IOException {
+	private static void awaitReplies(final Selector selector,
+			final DiscoveryListener listener) throws IOException {
+		// Devices may reply more than once, report each only once
+		final Set<String> found = new HashSet<String>();
+		final ByteBuffer buffer = ByteBuffer.allocate(REPLY_BUF_SIZE);
+		// Wait only TIMEOUT seconds in total, however many packets arrive
+		final long end = System.currentTimeMillis() + TIMEOUT_S * 1000;
+		while (true) {
+			final long remaining = end - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return;
+			}
+			selector.select(remaining);
+			for (final Iterator<SelectionKey> iterator = selector
+					.selectedKeys().iterator(); iterator.hasNext();) {
+				final DatagramChannel channel = (DatagramChannel) iterator
+						.next().channel();
+				iterator.remove();
+				while (true) {
+					buffer.clear();
+					if (channel.receive(buffer) == null) {
+						break;
+					}
+					final UPnPDevice server = new UPnPDevice(new String(buffer
+							.array(), 0, buffer.position()));
+					if (server.isBlobbox() && found.add(server.getUDN())) {
+						server.fetchDescription();
+						if (!listener.deviceFound(server)) {
+							return;
+						}
+					}
+				}
+			}
+		}
+	}
 
-		final List<UPnPDevice> boxes = new LinkedList<UPnPDevice>();
+	/**
+	 * The IPv4 addresses of the interfaces which are up and support
+	 * multicast, except loopback
+	 * 
+	 * @return List of {@link InetAddress}, empty if they cannot be listed
+	 */
+	private static List<InetAddress> getMulticastAddresses() {
+		final List<InetAddress> addresses = new ArrayList<InetAddress>();
+		final Enumeration<NetworkInterface> interfaces;
 		try {
-			while (true) {
-				/*
-				 * We must use new buffer and packets - reusing objects can
-				 * cause corruption if there are multiple devices in LAN.
-				 */
-				final byte[] buf = new byte[REPLY_BUF_SIZE];
-				final DatagramPacket reply = new DatagramPacket(buf, buf.length);
-				msocket.receive(reply);
-				final UPnPDevice server = new UPnPDevice(reply);
-				if (server.isBlobbox()) {
-					boxes.add(server);
+			interfaces = NetworkInterface.getNetworkInterfaces();
+		} catch (final SocketException exception) {
+			return addresses;
+		}
+		if (interfaces == null) {
+			return addresses;
+		}
+		while (interfaces.hasMoreElements()) {
+			final NetworkInterface networkInterface = interfaces.nextElement();
+			if (!is(networkInterface, "isUp")
+					|| !is(networkInterface, "supportsMulticast")) {
+				continue;
+			}
+			for (final Enumeration<InetAddress> inetAddresses = networkInterface
+					.getInetAddresses(); inetAddresses.hasMoreElements();) {
+				final InetAddress address = inetAddresses.nextElement();
+				if (address instanceof Inet4Address
+						&& !address.isLoopbackAddress()) {
+					addresses.add(address);
 				}
 			}
-		} catch (final SocketTimeoutException exception) {
-			// Ok, no more replies
 		}
-		return boxes;
+		return addresses;
+	}
+
+	/**
+	 * NetworkInterface.isUp() and supportsMulticast() only exist from
+	 * Android 2.3, on older versions every interface is assumed to qualify
+	 * 
+	 * @param networkInterface
+	 * @param method name of a boolean NetworkInterface method
+	 * @return the result of method, true if it is not available
+	 */
+	private static boolean is(final NetworkInterface networkInterface,
+			final String method) {
+		try {
+			return ((Boolean) NetworkInterface.class.getMethod(method).invoke(
+					networkInterface)).booleanValue();
+		} catch (final NoSuchMethodException exception) {
+			return true;
+		} catch (final IllegalAccessException exception) {
+			return true;
+		} catch (final InvocationTargetException exception) {
+			// SocketException, the interface has probably gone away
+			return false;
+		}
+	}
+
+	/**
+	 * Close channel, ignoring errors
+	 * 
+	 * @param channel
+	 */
+	private static void close(final Channel channel) {
+		try {
+			channel.close();
+		} catch (final IOException exception) {
+			// ignore
+		}
 	}
 
 	/**
@@ -102,8 +270,12 @@ public final class SSDP {
 	 */
 	public static void main(final String[] args) {
 		try {
-			final List<UPnPDevice> boxes = SSDP.findBlobboxDevices();
-			System.out.println("Found " + boxes.size() + " boxes, " + boxes);
+			SSDP.findBlobboxDevices(new DiscoveryListener() {
+				public boolean deviceFound(final UPnPDevice device) {
+					System.out.println("Found " + device);
+					return true;
+				}
+			});
 		} catch (final IOException exception) {
 			System.err.println(exception);
 		}
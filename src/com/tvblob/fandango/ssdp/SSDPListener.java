@@ -0,0 +1,289 @@
+package com.tvblob.fandango.ssdp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Long running SSDP listener which keeps a registry of the UPnP devices
+ * on the LAN, so that looking up a BLOBbox is an instant read instead of
+ * a blocking scan.
+ *
+ * While running the listener is a member of the SSDP multicast group:
+ * devices are added or refreshed by their ssdp:alive announcements and by
+ * the replies to its searches, and removed by their ssdp:byebye
+ * announcements or once the max-age of their last announcement has passed.
+ * The registry survives {@link #stop()}, so devices seen before remain
+ * available until they expire.
+ *
+ * On Android the caller must hold a WifiManager.MulticastLock while the
+ * listener runs, otherwise multicast packets are filtered out.
+ */
+public class SSDPListener {
+
+	// Validity of announcements without CACHE-CONTROL, as recommended by UPnP
+	private static final int DEFAULT_MAX_AGE_S = 1800;
+	private static final int MAX_DEVICES = 256;
+	private static final int BUFFER_SIZE = 2048;
+
+	private static SSDPListener defaultListener = null;
+
+	private final Map<String, Entry> devices = new LinkedHashMap<String, Entry>();
+
+	private MulticastSocket socket = null;
+
+	/**
+	 * The listener shared by the whole process
+	 *
+	 * @return {@link SSDPListener}
+	 */
+	public static synchronized SSDPListener getDefault() {
+		if (defaultListener == null) {
+			defaultListener = new SSDPListener();
+		}
+		return defaultListener;
+	}
+
+	/**
+	 * Join the SSDP multicast group, start listening on a daemon thread and
+	 * search for devices. Does nothing if already running.
+	 *
+	 * @throws IOException if the SSDP port cannot be bound
+	 */
+	public void start() throws IOException {
+		synchronized (this) {
+			if (socket != null) {
+				return;
+			}
+			final MulticastSocket multicastSocket = new MulticastSocket(
+					SSDP.PORT);
+			try {
+				multicastSocket.joinGroup(InetAddress.getByName(SSDP.MCAST_IP));
+			} catch (final IOException exception) {
+				multicastSocket.close();
+				throw exception;
+			}
+			socket = multicastSocket;
+
+			final Thread thread = new Thread(new Runnable() {
+				public void run() {
+					listen(multicastSocket);
+				}
+			}, "ssdp-listener");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		search();
+	}
+
+	/**
+	 * Leave the multicast group and stop listening, the devices already
+	 * found remain in the registry until they expire
+	 */
+	public synchronized void stop() {
+		if (socket == null) {
+			return;
+		}
+		try {
+			socket.leaveGroup(InetAddress.getByName(SSDP.MCAST_IP));
+		} catch (final IOException exception) {
+			// Closing the socket leaves the group anyway
+		}
+		socket.close();
+		socket = null;
+	}
+
+	/**
+	 * @return true iff started and not stopped
+	 */
+	public synchronized boolean isRunning() {
+		return socket != null;
+	}
+
+	/**
+	 * Search for BLOBboxes with {@link SSDP#findBlobboxDevices(DiscoveryListener)}
+	 * on a daemon thread, devices which reply are added to the registry as 
+	 * their replies arrive. 
+	 * 
+	 * The search is not sent from the SSDP port: replies are sent to the 
+	 * port a search came from, where another SSDP stack on this host could
+	 * receive them instead.
+	 */
+	public void search() {
+		if (!isRunning()) {
+			throw new IllegalStateException("SSDP listener is not running");
+		}
+		final Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					SSDP.findBlobboxDevices(new DiscoveryListener() {
+						public boolean deviceFound(final UPnPDevice device) {
+							handle(device);
+							return isRunning();
+						}
+					});
+				} catch (final IOException exception) {
+					// No interface to search on, rely on announcements
+				}
+			}
+		}, "ssdp-search");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return the devices currently on the LAN
+	 */
+	public synchronized List<UPnPDevice> getDevices() {
+		expire();
+		final List<UPnPDevice> result = new ArrayList<UPnPDevice>(devices
+				.size());
+		for (final Entry entry : devices.values()) {
+			result.add(entry.device);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the BLOBboxes currently on the LAN
+	 */
+	public synchronized List<UPnPDevice> getBlobboxDevices() {
+		final List<UPnPDevice> result = new ArrayList<UPnPDevice>();
+		for (final UPnPDevice device : getDevices()) {
+			if (device.isBlobbox()) {
+				result.add(device);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Wait until the registry contains a BLOBbox, e.g. after
+	 * {@link #search()}
+	 *
+	 * @param timeoutMs maximum time to wait in milliseconds
+	 * @return the first BLOBbox in the registry, null if none was found in
+	 *         time
+	 * @throws InterruptedException
+	 */
+	public synchronized UPnPDevice awaitBlobbox(final long timeoutMs)
+			throws InterruptedException {
+		final long end = System.currentTimeMillis() + timeoutMs;
+		while (true) {
+			final List<UPnPDevice> boxes = getBlobboxDevices();
+			if (!boxes.isEmpty()) {
+				return boxes.get(0);
+			}
+			final long remaining = end - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return null;
+			}
+			wait(remaining);
+		}
+	}
+
+	/**
+	 * Forget all devices, e.g. after a change of network
+	 */
+	public synchronized void clear() {
+		devices.clear();
+	}
+
+	/**
+	 * Receive and handle messages until the socket is closed by
+	 * {@link #stop()}
+	 *
+	 * @param multicastSocket
+	 */
+	private void listen(final MulticastSocket multicastSocket) {
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		while (true) {
+			final DatagramPacket packet = new DatagramPacket(buffer,
+					buffer.length);
+			try {
+				multicastSocket.receive(packet);
+			} catch (final IOException exception) {
+				// Socket closed by stop()
+				return;
+			}
+			handle(new UPnPDevice(packet));
+		}
+	}
+
+	/**
+	 * PACKAGE PRIVATE
+	 *
+	 * Add, refresh or remove the device which sent message
+	 *
+	 * @param message NOTIFY message or reply to a search
+	 */
+	synchronized void handle(final UPnPDevice message) {
+		final String udn = message.getUDN();
+		if (udn == null) {
+			// Searches by other control points
+			return;
+		}
+		if (message.isByeBye()) {
+			devices.remove(udn);
+			return;
+		}
+		if (message.getLocationURL() == null) {
+			return;
+		}
+
+		final int maxAge = message.getMaxAge();
+		final long expiry = System.currentTimeMillis() + 1000L
+				* (maxAge < 0 ? DEFAULT_MAX_AGE_S : maxAge);
+		final Entry entry = devices.get(udn);
+		if (entry != null
+				&& entry.device.getLocationURL().equals(
+						message.getLocationURL())) {
+			// Same device, keep what is already known about it
+			entry.expiry = expiry;
+			return;
+		}
+		if (entry == null) {
+			expire();
+			if (devices.size() >= MAX_DEVICES) {
+				return;
+			}
+		}
+		if (message.isBlobbox()) {
+			message.fetchDescription();
+		}
+		devices.put(udn, new Entry(message, expiry));
+		notifyAll();
+	}
+
+	/**
+	 * Remove the devices whose announcements are no longer valid
+	 */
+	private void expire() {
+		final long now = System.currentTimeMillis();
+		for (final Iterator<Entry> iterator = devices.values().iterator(); iterator
+				.hasNext();) {
+			if (iterator.next().expiry <= now) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * A device and the time until which it is known to be present
+	 */
+	private static final class Entry {
+		final UPnPDevice device;
+		long expiry;
+
+		Entry(final UPnPDevice device, final long expiry) {
+			this.device = device;
+			this.expiry = expiry;
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package com.tvblob.fandango.ssdp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * The parts of a UPnP device description (description.xml) which are used:
+ * the names and unique device name of the root device and the control URLs
+ * of its services. Immutable.
+ *
+ * Descriptions are extracted with a SAX parser which stops reading once
+ * the names, UDN and services of the root device have all been seen, or at
+ * the end of the root device, no document tree is built or kept.
+ */
+public final class UPnPDescription {
+
+	private final String friendlyName;
+	private final String modelName;
+	private final String udn;
+	private final Map<String, String> controlURLs;
+
+	private UPnPDescription(final String friendlyName, final String modelName,
+			final String udn, final Map<String, String> controlURLs) {
+		this.friendlyName = friendlyName;
+		this.modelName = modelName;
+		this.udn = udn;
+		this.controlURLs = Collections.unmodifiableMap(controlURLs);
+	}
+
+	/**
+	 * Read the description of a device
+	 *
+	 * @param inputStream description.xml, not closed
+	 * @param locationURL URL of description.xml, relative control URLs are
+	 *        resolved against it unless the description has a URLBase
+	 * @return {@link UPnPDescription}
+	 * @throws IOException if the description cannot be read or is not valid
+	 *         XML
+	 */
+	public static UPnPDescription parse(final InputStream inputStream,
+			final String locationURL) throws IOException {
+		final Extractor extractor = new Extractor(locationURL);
+		try {
+			SAXParserFactory.newInstance().newSAXParser().parse(inputStream,
+					extractor);
+		} catch (final Extractor.Done done) {
+			// Everything needed has been read
+		} catch (final SAXException exception) {
+			throw invalid(locationURL, exception);
+		} catch (final ParserConfigurationException exception) {
+			throw invalid(locationURL, exception);
+		}
+		return new UPnPDescription(extractor.friendlyName,
+				extractor.modelName, extractor.udn, extractor.controlURLs);
+	}
+
+	private static IOException invalid(final String locationURL,
+			final Exception cause) {
+		final IOException exception = new IOException(
+				"Unable to parse description " + locationURL + ": "
+						+ cause.getMessage());
+		exception.initCause(cause);
+		return exception;
+	}
+
+	/**
+	 * @return friendlyName of the root device, null if not present
+	 */
+	public String getFriendlyName() {
+		return friendlyName;
+	}
+
+	/**
+	 * @return modelName of the root device, null if not present
+	 */
+	public String getModelName() {
+		return modelName;
+	}
+
+	/**
+	 * @return UDN of the root device, e.g.
+	 *         uuid:blobbox-1_0-000006244034248144, null if not present
+	 */
+	public String getUDN() {
+		return udn;
+	}
+
+	/**
+	 * @return absolute control URL by service type, for the services of the
+	 *         root device
+	 */
+	public Map<String, String> getControlURLs() {
+		return controlURLs;
+	}
+
+	/**
+	 * @param serviceType e.g. urn:schemas-upnp-org:service:AVTransport:1
+	 * @return absolute control URL of the service, null if the root device
+	 *         has no such service
+	 */
+	public String getControlURL(final String serviceType) {
+		return controlURLs.get(serviceType);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return friendlyName + " (" + modelName + ") " + udn + " "
+				+ controlURLs;
+	}
+
+	/**
+	 * SAX handler which collects the fields of the root device, ignoring
+	 * embedded devices, and stops the parse once they have all been seen
+	 */
+	private static final class Extractor extends DefaultHandler {
+
+		/**
+		 * Thrown to stop parsing early
+		 */
+		static final class Done extends SAXException {
+			private static final long serialVersionUID = 1L;
+
+			Done() {
+				super("done");
+			}
+		}
+
+		private final String locationURL;
+		private final StringBuilder text = new StringBuilder();
+
+		String friendlyName = null;
+		String modelName = null;
+		String udn = null;
+		final Map<String, String> controlURLs = new LinkedHashMap<String, String>();
+
+		private String urlBase = null;
+		private int deviceDepth = 0;
+		private boolean inService = false;
+		private String serviceType = null;
+		private String controlURL = null;
+		private boolean serviceListSeen = false;
+
+		Extractor(final String locationURL) {
+			this.locationURL = locationURL;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.xml.sax.helpers.DefaultHandler#startElement(java.lang.String, java.lang.String, java.lang.String, org.xml.sax.Attributes)
+		 */
+		@Override
+		public void startElement(final String uri, final String localName,
+				final String qName, final Attributes attributes) {
+			final String name = name(localName, qName);
+			if ("device".equals(name)) {
+				deviceDepth++;
+			} else if (deviceDepth == 1 && "service".equals(name)) {
+				inService = true;
+				serviceType = null;
+				controlURL = null;
+			}
+			text.setLength(0);
+		}
+
+		/* (non-Javadoc)
+		 * @see org.xml.sax.helpers.DefaultHandler#characters(char[], int, int)
+		 */
+		@Override
+		public void characters(final char[] ch, final int start,
+				final int length) {
+			text.append(ch, start, length);
+		}
+
+		/* (non-Javadoc)
+		 * @see org.xml.sax.helpers.DefaultHandler#endElement(java.lang.String, java.lang.String, java.lang.String)
+		 */
+		@Override
+		public void endElement(final String uri, final String localName,
+				final String qName) throws SAXException {
+			final String name = name(localName, qName);
+			final String value = text.toString().trim();
+			text.setLength(0);
+
+			if (deviceDepth == 0) {
+				if ("URLBase".equals(name)) {
+					urlBase = value;
+				}
+				return;
+			}
+			if ("device".equals(name)) {
+				if (--deviceDepth == 0) {
+					throw new Done();
+				}
+				return;
+			}
+			if (deviceDepth > 1) {
+				// Embedded device
+				return;
+			}
+
+			if (inService) {
+				if ("serviceType".equals(name)) {
+					serviceType = value;
+				} else if ("controlURL".equals(name)) {
+					controlURL = value;
+				} else if ("service".equals(name)) {
+					if (serviceType != null && controlURL != null) {
+						controlURLs.put(serviceType, resolve(controlURL));
+					}
+					inService = false;
+				}
+			} else if ("friendlyName".equals(name)) {
+				friendlyName = value;
+			} else if ("modelName".equals(name)) {
+				modelName = value;
+			} else if ("UDN".equals(name)) {
+				udn = value;
+			} else if ("serviceList".equals(name)) {
+				serviceListSeen = true;
+			} else {
+				return;
+			}
+			// Element order is not fixed, the fields may follow the services
+			if (serviceListSeen && friendlyName != null && modelName != null
+					&& udn != null) {
+				throw new Done();
+			}
+		}
+
+		/**
+		 * @param url
+		 * @return url made absolute
+		 */
+		private String resolve(final String url) {
+			try {
+				return new URL(new URL(urlBase == null ? locationURL
+						: urlBase), url).toString();
+			} catch (final MalformedURLException exception) {
+				return url;
+			}
+		}
+
+		/**
+		 * @param localName
+		 * @param qName
+		 * @return element name without namespace prefix
+		 */
+		private static String name(final String localName, final String qName) {
+			if (localName != null && localName.length() > 0) {
+				return localName;
+			}
+			return qName.substring(qName.indexOf(':') + 1);
+		}
+	}
+}
@@ -3,6 +3,7 @@ package com.tvblob.fandango.ssdp;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.StringReader;
 import java.net.DatagramPacket;
 import java.net.HttpURLConnection;
@@ -10,19 +11,24 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Map;
 import java.util.TreeMap;
-
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * MetaData regarding a UPnP device
  * 
+ * The description.xml of devices is fetched in the background on a small
+ * shared pool, see {@link #fetchDescription()}, so that the descriptions of
+ * many devices are read concurrently. Only the {@link UPnPDescription}
+ * extracted from it is kept.
+ * 
  * <code>
  * 
  * @author Paul Henshaw
@@ -33,9 +39,20 @@ public class UPnPDevice {
 	private static final String BLOBBOX_PREFIX = "uuid:blobbox-";
 	private static final String LOCATION_FIELD = "LOCATION";
 	private static final String USN_FIELD = "USN";
+	private static final String NTS_FIELD = "NTS";
+	private static final String CACHE_CONTROL_FIELD = "CACHE-CONTROL";
+	private static final String BYEBYE = "ssdp:byebye";
+	private static final String MAX_AGE = "max-age";
+
+	// Descriptions fetched at the same time, and time allowed to each
+	private static final int FETCH_THREADS = 4;
+	private static final int CONNECT_TIMEOUT_MS = 2000;
+	private static final int READ_TIMEOUT_MS = 3000;
+
+	private static ExecutorService fetcher = null;
 
 	private final Map<String, String> metaData;
-	private Document doc;
+	private Future<UPnPDescription> description;
 
 	/**
 	 * Construct {@link UPnPDevice} from SSDP reply packet
@@ -43,7 +60,7 @@ public class UPnPDevice {
 	 * @param reply
 	 */
 	public UPnPDevice(final DatagramPacket reply) {
-		this(new String(reply.getData()));
+		this(new String(reply.getData(), reply.getOffset(), reply.getLength()));
 	}
 
 	/**
@@ -51,7 +68,7 @@ public class UPnPDevice {
 	 */
 	public UPnPDevice(final String reply) {
 		metaData = initMetaData(reply);
-		doc = null;
+		description = null;
 	}
 
 	/**
@@ -73,7 +90,9 @@ public class UPnPDevice {
 		final BufferedReader reader = new BufferedReader(
 				new StringReader(reply));
 		String line;
-		final Map<String, String> map = new TreeMap<String, String>();
+		// Field names are case insensitive
+		final Map<String, String> map = new TreeMap<String, String>(
+				String.CASE_INSENSITIVE_ORDER);
 		try {
 			while ((line = reader.readLine()) != null) {
 				final int index = line.indexOf(':');
@@ -105,6 +124,52 @@ public class UPnPDevice {
 		return usn != null && usn.startsWith(BLOBBOX_PREFIX);
 	}
 
+	/**
+	 * @return the unique device name from the USN field, e.g.
+	 *         uuid:blobbox-1_0-000006244034248144, or null if not present
+	 */
+	public String getUDN() {
+		final String usn = getField(USN_FIELD);
+		if (usn == null) {
+			return null;
+		}
+		final int index = usn.indexOf("::");
+		return index < 0 ? usn : usn.substring(0, index);
+	}
+
+	/**
+	 * @return true iff this is a NOTIFY message announcing that the device 
+	 *         is leaving the network
+	 */
+	public boolean isByeBye() {
+		return BYEBYE.equalsIgnoreCase(getField(NTS_FIELD));
+	}
+
+	/**
+	 * @return seconds for which the announcement is valid, from the 
+	 *         CACHE-CONTROL field, or -1 if not specified
+	 */
+	public int getMaxAge() {
+		final String cacheControl = getField(CACHE_CONTROL_FIELD);
+		if (cacheControl == null) {
+			return -1;
+		}
+		for (final String directive : cacheControl.split(",")) {
+			final int index = directive.indexOf('=');
+			if (index > 0
+					&& MAX_AGE.equalsIgnoreCase(directive.substring(0, index)
+							.trim())) {
+				try {
+					return Integer.parseInt(directive.substring(index + 1)
+							.trim());
+				} catch (final NumberFormatException exception) {
+					return -1;
+				}
+			}
+		}
+		return -1;
+	}
+
 	/**
 	 * @return LOCATION field URL
 	 */
@@ -130,55 +195,104 @@ public class UPnPDevice {
 	}
 
 	/**
-	 * The value of the friendlyName element
+	 * The value of the friendlyName element, waits for the description to
+	 * be fetched if necessary
 	 * 
 	 * @return String
-	 * @throws MalformedURLException
 	 * @throws IOException
-	 * @throws ParserConfigurationException
-	 * @throws SAXException
 	 */
 	public String getFriendlyName() throws IOException {
-		final Document document = getXMLDescription();
-		if (document == null) {
-			System.err.println("NULL doc! " + metaData);
-			return null;
+		final UPnPDescription upnpDescription = getDescription();
+		return upnpDescription == null ? null : upnpDescription
+				.getFriendlyName();
+	}
+
+	/**
+	 * Start fetching description.xml in the background, unless already
+	 * fetched or being fetched. Returns immediately.
+	 */
+	public synchronized void fetchDescription() {
+		if (description != null) {
+			return;
 		}
+		description = getFetcher().submit(new Callable<UPnPDescription>() {
+			public UPnPDescription call() throws IOException {
+				return readDescription();
+			}
+		});
+	}
 
-		final NodeList deviceNodeList = document.getDocumentElement()
-				.getElementsByTagName("device");
+	/**
+	 * @return true iff description.xml has been fetched, successfully or not
+	 */
+	public synchronized boolean isDescriptionFetched() {
+		return description != null && description.isDone();
+	}
 
-		if (deviceNodeList.getLength() == 0) {
-			return null;
+	/**
+	 * @return the contents of UPnP description.xml, null if there is no
+	 *         valid LOCATION. Uses the cached description if available,
+	 *         otherwise waits for the fetch to complete.
+	 * @throws IOException
+	 */
+	public UPnPDescription getDescription() throws IOException {
+		final Future<UPnPDescription> future;
+		synchronized (this) {
+			fetchDescription();
+			future = description;
 		}
-
-		final Element elem = (Element) deviceNodeList.item(0);
-		final NodeList nodeList = elem.getElementsByTagName("friendlyName");
-		if (nodeList.getLength() == 0) {
-			return null;
+		try {
+			return future.get();
+		} catch (final InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted fetching description of " + getLocationURL());
+		} catch (final ExecutionException exception) {
+			synchronized (this) {
+				// Failed, fetch again when next asked
+				if (description == future) {
+					description = null;
+				}
+			}
+			final Throwable cause = exception.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw (Error) cause;
 		}
-		Node firstChild = nodeList.item(0).getFirstChild();
-		return firstChild == null ? null : firstChild.getNodeValue();
 	}
 
 	/**
-	 * @return XML document for UPnP description.xml, uses cached document if
-	 *         available
-	 * @throws IOException
+	 * @return the pool shared by all devices, created when first needed
 	 */
-	public Document getXMLDescription() throws IOException {
-		if (this.doc == null) {
-			doc = readXMLDocument();
+	private static synchronized ExecutorService getFetcher() {
+		if (fetcher == null) {
+			fetcher = new ThreadPoolExecutor(FETCH_THREADS, FETCH_THREADS, 0L,
+					TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+						private final AtomicInteger threadNumber = new AtomicInteger();
+
+						public Thread newThread(final Runnable runnable) {
+							final Thread thread = new Thread(runnable,
+									"upnp-description-"
+											+ threadNumber.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
 		}
-		return doc;
+		return fetcher;
 	}
 
 	/**
 	 * 
-	 * @return Document
+	 * @return {@link UPnPDescription}
 	 * @throws IOException
 	 */
-	private Document readXMLDocument() throws IOException {
+	private UPnPDescription readDescription() throws IOException {
 		final String url = getLocationURL();
 		if (url == null) {
 			return null;
@@ -189,17 +303,12 @@ public class UPnPDevice {
 		} catch (final MalformedURLException badURL) {
 			return null;
 		}
+		connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+		connection.setReadTimeout(READ_TIMEOUT_MS);
 		final InputStream inputStream = connection.getInputStream();
 
 		try {
-			return DocumentBuilderFactory.newInstance().newDocumentBuilder()
-					.parse(inputStream);
-		} catch (final SAXException exception) {
-			exception.printStackTrace();
-			return null;
-		} catch (final ParserConfigurationException exception) {
-			exception.printStackTrace();
-			return null;
+			return UPnPDescription.parse(inputStream, url);
 		} finally {
 			try {
 				inputStream.close();
@@ -218,20 +327,25 @@ public class UPnPDevice {
 	public String toString() {
 		if (isBlobbox()) {
 			return "Blobbox on " + getHost() + " name="
-					+ getFriendlyNameIgnoreErrors();
+					+ getFetchedFriendlyName();
 		}
 		return metaData.toString();
 	}
 
 	/**
-	 * @return String
+	 * Never does network I/O, so safe for logging
+	 * 
+	 * @return the friendly name if the description has already been
+	 *         fetched, otherwise null
 	 */
-	private String getFriendlyNameIgnoreErrors() {
+	private String getFetchedFriendlyName() {
+		if (!isDescriptionFetched()) {
+			return null;
+		}
 		String name;
 		try {
 			name = getFriendlyName();
 		} catch (final IOException exception) {
-			exception.printStackTrace();
 			name = null;
 		}
 		return name;
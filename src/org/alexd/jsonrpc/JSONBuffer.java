@@ -0,0 +1,279 @@
+package org.alexd.jsonrpc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Growable byte buffer into which JSON text is written as UTF-8.
+ * Buffers are taken from and returned to a small shared pool so that
+ * sending a request does not allocate a new buffer each time.
+ */
+final class JSONBuffer
+{
+	private static final int INITIAL_SIZE = 512;
+	// Larger buffers are left to the garbage collector rather than pooled
+	private static final int MAX_POOLED_SIZE = 16 * 1024;
+	private static final int MAX_POOLED_BUFFERS = 8;
+
+	private static final Queue<JSONBuffer> POOL = new ConcurrentLinkedQueue<JSONBuffer>();
+
+	private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+	private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+	private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+	private byte[] bytes = new byte[INITIAL_SIZE];
+	private int count = 0;
+
+	private JSONBuffer()
+	{
+		// Use obtain()
+	}
+
+	/**
+	 * An empty buffer, from the pool if available
+	 */
+	static JSONBuffer obtain()
+	{
+		JSONBuffer buffer = POOL.poll();
+		return buffer == null ? new JSONBuffer() : buffer;
+	}
+
+	/**
+	 * Return the buffer to the pool, it must not be used afterwards
+	 */
+	void recycle()
+	{
+		count = 0;
+		if (bytes.length <= MAX_POOLED_SIZE && POOL.size() < MAX_POOLED_BUFFERS)
+		{
+			POOL.offer(this);
+		}
+	}
+
+	int length()
+	{
+		return count;
+	}
+
+	byte[] bytes()
+	{
+		return bytes;
+	}
+
+	void writeTo(OutputStream out) throws IOException
+	{
+		out.write(bytes, 0, count);
+	}
+
+	void write(byte[] data)
+	{
+		ensureCapacity(data.length);
+		System.arraycopy(data, 0, bytes, count, data.length);
+		count += data.length;
+	}
+
+	void write(char c)
+	{
+		ensureCapacity(1);
+		bytes[count++] = (byte) c;
+	}
+
+	/**
+	 * Write a JSON value: strings, numbers, booleans, null, 
+	 * {@link JSONObject} and {@link JSONArray} are written as JSON, 
+	 * other objects as a string
+	 * @param value
+	 * @throws JSONException if the value cannot be represented in JSON
+	 */
+	void writeValue(Object value) throws JSONException
+	{
+		if (value == null || value.equals(null))
+		{
+			write(NULL);
+		}
+		else if (value instanceof String)
+		{
+			writeString((String) value);
+		}
+		else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+		{
+			writeLong(((Number) value).longValue());
+		}
+		else if (value instanceof Number)
+		{
+			writeASCII(JSONObject.numberToString((Number) value));
+		}
+		else if (value instanceof Boolean)
+		{
+			write(((Boolean) value).booleanValue() ? TRUE : FALSE);
+		}
+		else if (value instanceof JSONObject || value instanceof JSONArray)
+		{
+			writeUTF8(value.toString());
+		}
+		else
+		{
+			writeString(value.toString());
+		}
+	}
+
+	/**
+	 * Write string as a quoted and escaped JSON string
+	 */
+	void writeString(String string)
+	{
+		write('"');
+		int length = string.length();
+		for (int i=0; i<length; i++)
+		{
+			char c = string.charAt(i);
+			switch (c)
+			{
+			case '"':
+			case '\\':
+				write('\\');
+				write(c);
+				break;
+			case '\n':
+				write('\\');
+				write('n');
+				break;
+			case '\r':
+				write('\\');
+				write('r');
+				break;
+			case '\t':
+				write('\\');
+				write('t');
+				break;
+			case '\b':
+				write('\\');
+				write('b');
+				break;
+			case '\f':
+				write('\\');
+				write('f');
+				break;
+			default:
+				if (c < 0x20)
+				{
+					ensureCapacity(6);
+					bytes[count++] = '\\';
+					bytes[count++] = 'u';
+					bytes[count++] = '0';
+					bytes[count++] = '0';
+					bytes[count++] = HEX[c >> 4];
+					bytes[count++] = HEX[c & 0xf];
+				}
+				else
+				{
+					i = writeUTF8(string, i);
+				}
+			}
+		}
+		write('"');
+	}
+
+	/**
+	 * Write unescaped text as UTF-8
+	 */
+	void writeUTF8(String text)
+	{
+		int length = text.length();
+		for (int i=0; i<length; i++)
+		{
+			i = writeUTF8(text, i);
+		}
+	}
+
+	/**
+	 * Write the character at index as UTF-8
+	 * @return the index of the last char consumed (surrogate pairs use two)
+	 */
+	private int writeUTF8(String text, int index)
+	{
+		char c = text.charAt(index);
+		ensureCapacity(4);
+		if (c < 0x80)
+		{
+			bytes[count++] = (byte) c;
+		}
+		else if (c < 0x800)
+		{
+			bytes[count++] = (byte) (0xc0 | c >> 6);
+			bytes[count++] = (byte) (0x80 | c & 0x3f);
+		}
+		else if (Character.isHighSurrogate(c) && index + 1 < text.length() 
+				&& Character.isLowSurrogate(text.charAt(index + 1)))
+		{
+			int codePoint = Character.toCodePoint(c, text.charAt(++index));
+			bytes[count++] = (byte) (0xf0 | codePoint >> 18);
+			bytes[count++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+			bytes[count++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+			bytes[count++] = (byte) (0x80 | codePoint & 0x3f);
+		}
+		else
+		{
+			bytes[count++] = (byte) (0xe0 | c >> 12);
+			bytes[count++] = (byte) (0x80 | c >> 6 & 0x3f);
+			bytes[count++] = (byte) (0x80 | c & 0x3f);
+		}
+		return index;
+	}
+
+	void writeLong(long value)
+	{
+		if (value == Long.MIN_VALUE)
+		{
+			writeASCII(Long.toString(value));
+			return;
+		}
+		ensureCapacity(20);
+		if (value < 0)
+		{
+			bytes[count++] = '-';
+			value = -value;
+		}
+		// Write digits backwards then reverse them in place
+		int start = count;
+		do
+		{
+			bytes[count++] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		while (value > 0);
+		for (int i=start, j=count-1; i<j; i++, j--)
+		{
+			byte tmp = bytes[i];
+			bytes[i] = bytes[j];
+			bytes[j] = tmp;
+		}
+	}
+
+	private void writeASCII(String text)
+	{
+		int length = text.length();
+		ensureCapacity(length);
+		for (int i=0; i<length; i++)
+		{
+			bytes[count++] = (byte) text.charAt(i);
+		}
+	}
+
+	private void ensureCapacity(int extra)
+	{
+		if (count + extra > bytes.length)
+		{
+			byte[] larger = new byte[Math.max(bytes.length * 2, count + extra)];
+			System.arraycopy(bytes, 0, larger, 0, count);
+			bytes = larger;
+		}
+	}
+}
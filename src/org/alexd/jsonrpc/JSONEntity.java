@@ -1,26 +1,139 @@
 package org.alexd.jsonrpc;
 
-import java.io.UnsupportedEncodingException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.apache.http.Header;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.message.BasicHeader;
-import org.apache.http.protocol.HTTP;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
  * Provides a HttpEntity for json content
+ * 
+ * The content is written as UTF-8 into a pooled buffer, which is returned 
+ * to the pool by {@link #release()} once the request has been sent.
  */
-class JSONEntity extends StringEntity 
+class JSONEntity extends AbstractHttpEntity 
 {
-	public JSONEntity(JSONObject jsonObject) throws UnsupportedEncodingException 
+	// Cached '{"method":"<method>","params":[' per method name
+	private static final Map<String, byte[]> PREFIXES = new ConcurrentHashMap<String, byte[]>();
+	private static final int MAX_CACHED_PREFIXES = 64;
+	private static final byte[] ID = { ']', ',', '"', 'i', 'd', '"', ':' };
+
+	private JSONBuffer buffer;
+
+	/**
+	 * Entity for a single JSON-RPC method call
+	 */
+	public JSONEntity(int id, String method, Object[] params) throws JSONException 
+	{
+		this();
+		buffer.write(getPrefix(method));
+		for (int i=0; i<params.length; i++)
+		{
+			if (i > 0)
+			{
+				buffer.write(',');
+			}
+			buffer.writeValue(params[i]);
+		}
+		buffer.write(ID);
+		buffer.writeLong(id);
+		buffer.write('}');
+	}
+
+	public JSONEntity(JSONObject jsonObject) 
+	{
+		this();
+		buffer.writeUTF8(jsonObject.toString());
+	}
+
+	public JSONEntity(JSONArray jsonArray) 
+	{
+		this();
+		buffer.writeUTF8(jsonArray.toString());
+	}
+
+	private JSONEntity()
+	{
+		buffer = JSONBuffer.obtain();
+		setContentType("application/json");
+	}
+
+	/**
+	 * @param method
+	 * @return the constant start of the request envelope for method
+	 */
+	private static byte[] getPrefix(String method)
+	{
+		byte[] prefix = PREFIXES.get(method);
+		if (prefix == null)
+		{
+			JSONBuffer prefixBuffer = JSONBuffer.obtain();
+			prefixBuffer.writeUTF8("{\"method\":");
+			prefixBuffer.writeString(method);
+			prefixBuffer.writeUTF8(",\"params\":[");
+			prefix = new byte[prefixBuffer.length()];
+			System.arraycopy(prefixBuffer.bytes(), 0, prefix, 0, prefix.length);
+			prefixBuffer.recycle();
+			if (PREFIXES.size() < MAX_CACHED_PREFIXES)
+			{
+				PREFIXES.put(method, prefix);
+			}
+		}
+		return prefix;
+	}
+
+	/**
+	 * Return the content buffer to the pool, the entity may not be used afterwards
+	 */
+	public void release()
 	{
-		super(jsonObject.toString());
+		if (buffer != null)
+		{
+			buffer.recycle();
+			buffer = null;
+		}
 	}
 
-	@Override
-	public Header getContentType() 
+	/**
+	 * The content, without copying, for writing to a channel
+	 */
+	ByteBuffer toByteBuffer()
 	{
-		return new BasicHeader(HTTP.CONTENT_TYPE, "application/json");
-	}	
+		return ByteBuffer.wrap(buffer.bytes(), 0, buffer.length());
+	}
+
+	public boolean isRepeatable() 
+	{
+		return true;
+	}
+
+	public long getContentLength() 
+	{
+		return buffer.length();
+	}
+
+	public InputStream getContent() throws IOException 
+	{
+		return new ByteArrayInputStream(buffer.bytes(), 0, buffer.length());
+	}
+
+	public void writeTo(OutputStream outstream) throws IOException 
+	{
+		buffer.writeTo(outstream);
+		outstream.flush();
+		JSONRPCFuture.requestSent();
+	}
+
+	public boolean isStreaming() 
+	{
+		return false;
+	}
 }
@@ -0,0 +1,275 @@
+package org.alexd.jsonrpc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A sequence of JSON-RPC method calls sent to the service as a single
+ * JSON-RPC batch request. Results are matched back to their calls by id.
+ *
+ * If the service does not understand batch requests the calls are 
+ * performed one after the other, and the client remembers not to attempt
+ * further batches. Other errors, e.g. an expired session, fail the batch 
+ * without disabling batches.
+ *
+ * A batch is sent as a single request of its own: its calls are neither 
+ * answered from the response cache nor coalesced, and the retries or other
+ * policies a subclass applies in 
+ * {@link JSONRPCClient#doJSONRequest(int, String, Object[])} do not apply 
+ * to it.
+ */
+public class JSONRPCBatch
+{
+	/**
+	 * Name under which batch requests are recorded in {@link JSONRPCMetrics}
+	 */
+	public static final String BATCH_METHOD = "[batch]";
+
+	// Error codes of replies to requests which are not understood
+	private static final int PARSE_ERROR = -32700;
+	private static final int INVALID_REQUEST = -32600;
+	private static final int JABSORB_PARSE_ERROR = 590;
+
+	private final JSONRPCClient client;
+	private final List<String> methods = new ArrayList<String>();
+	private final List<Object[]> params = new ArrayList<Object[]>();
+	private final List<Boolean> ignoreErrors = new ArrayList<Boolean>();
+
+	/**
+	 * Use {@link JSONRPCClient#createBatch()}
+	 * @param client The client used to send the batch
+	 */
+	JSONRPCBatch(JSONRPCClient client)
+	{
+		this.client = client;
+	}
+
+	/**
+	 * Add a method call to the batch
+	 * @param method The name of the method to invoke
+	 * @param params Arguments of the method
+	 * @return this batch
+	 */
+	public JSONRPCBatch add(String method, Object ... params)
+	{
+		return add(method, params, false);
+	}
+
+	/**
+	 * Add a method call whose errors do not fail the batch, e.g. a call
+	 * made just in case ahead of the calls which matter
+	 * @param method The name of the method to invoke
+	 * @param params Arguments of the method
+	 * @return this batch
+	 */
+	public JSONRPCBatch addIgnoringErrors(String method, Object ... params)
+	{
+		return add(method, params, true);
+	}
+
+	private JSONRPCBatch add(String method, Object[] params, boolean ignoreErrors)
+	{
+		this.methods.add(method);
+		this.params.add(params);
+		this.ignoreErrors.add(Boolean.valueOf(ignoreErrors));
+		return this;
+	}
+
+	/**
+	 * The number of calls in the batch
+	 */
+	public int size()
+	{
+		return methods.size();
+	}
+
+	/**
+	 * Perform the calls in the batch
+	 * @return The results of the calls, in the order the calls were added, 
+	 * null for failed calls whose errors are ignored
+	 * @throws JSONRPCException if an error is encountered during any of the calls
+	 * whose errors are not ignored, or in sending the batch
+	 */
+	public Object[] execute() throws JSONRPCException
+	{
+		if (size() == 0)
+		{
+			return new Object[0];
+		}
+		if (client.isBatchSupported())
+		{
+			JSONRPCPendingRequests pendingRequests = client.getPendingRequests();
+			List<JSONRPCPendingRequests.Request> requests = new ArrayList<JSONRPCPendingRequests.Request>(size());
+			try
+			{
+				Map<Integer, Integer> indexById = new HashMap<Integer, Integer>();
+				JSONArray jsonRequests = new JSONArray();
+				for (int i=0; i<size(); i++)
+				{
+					JSONRPCPendingRequests.Request request = pendingRequests.register(methods.get(i));
+					requests.add(request);
+					indexById.put(Integer.valueOf(request.getId()), Integer.valueOf(i));
+					jsonRequests.put(client.createRequest(request.getId(), methods.get(i), params.get(i)));
+				}
+
+				JSONArray jsonResponses;
+				long start = System.currentTimeMillis();
+				JSONRPCException error = null;
+				try
+				{
+					jsonResponses = client.doJSONBatchRequest(jsonRequests);
+				}
+				catch (JSONRPCException e)
+				{
+					error = e;
+					throw e;
+				}
+				finally
+				{
+					client.getMetrics().recordCall(BATCH_METHOD, System.currentTimeMillis() - start, error);
+				}
+				if (jsonResponses != null)
+				{
+					return matchResults(jsonResponses, indexById);
+				}
+				client.setBatchSupported(false);
+			}
+			finally
+			{
+				for (JSONRPCPendingRequests.Request request : requests)
+				{
+					pendingRequests.remove(request);
+				}
+			}
+		}
+		return executeSequentially();
+	}
+
+	/**
+	 * Interpret the reply to a batch request
+	 * @param response The decoded reply: JSONObject, JSONArray or null if not valid JSON
+	 * @return the responses, null if the reply shows that the service does not 
+	 * understand batch requests: a single response or a parse error
+	 * @throws JSONRPCException if the reply is not valid JSON, or is an error 
+	 * which does not concern batches, e.g. an expired session
+	 */
+	static JSONArray toBatchResponse(Object response) throws JSONRPCException
+	{
+		if (response instanceof JSONArray)
+		{
+			return (JSONArray) response;
+		}
+		if (!(response instanceof JSONObject))
+		{
+			// e.g. an HTML error page from a server in trouble
+			throw new JSONRPCException("Invalid JSON batch response");
+		}
+		Object jsonError = ((JSONObject) response).opt("error");
+		if (jsonError != null && !jsonError.equals(null) && !isParseError(jsonError))
+		{
+			throw new JSONRPCException(jsonError);
+		}
+		return null;
+	}
+
+	/**
+	 * @param jsonError The error member of a response
+	 * @return true if the error reports that the request could not be 
+	 * understood as a call: JSON-RPC 2.0 parse error or invalid request, or 
+	 * Jabsorb parse error
+	 */
+	private static boolean isParseError(Object jsonError)
+	{
+		if (!(jsonError instanceof JSONObject))
+		{
+			return false;
+		}
+		int code = ((JSONObject) jsonError).optInt("code");
+		return code == PARSE_ERROR || code == INVALID_REQUEST || code == JABSORB_PARSE_ERROR;
+	}
+
+	/**
+	 * @param jsonResponses
+	 * @param indexById
+	 * @return results ordered as the calls
+	 * @throws JSONRPCException
+	 */
+	private Object[] matchResults(JSONArray jsonResponses, Map<Integer, Integer> indexById) throws JSONRPCException
+	{
+		Object[] results = new Object[size()];
+		boolean[] answered = new boolean[size()];
+		try
+		{
+			for (int i=0; i<jsonResponses.length(); i++)
+			{
+				JSONObject jsonResponse = jsonResponses.getJSONObject(i);
+				Integer id = JSONRPCPendingRequests.getId(jsonResponse);
+				Integer index = id == null ? null : indexById.get(id);
+				if (index == null)
+				{
+					throw new JSONRPCException("Unexpected response id in batch: " + jsonResponse.opt("id"));
+				}
+				answered[index.intValue()] = true;
+				// Check for remote errors
+				Object jsonError = jsonResponse.opt("error");
+				if (jsonError != null && !jsonError.equals(null))
+				{
+					if (isIgnoringErrors(index.intValue()))
+					{
+						continue;
+					}
+					throw new JSONRPCException(jsonError);
+				}
+				results[index.intValue()] = jsonResponse.get("result");
+			}
+		}
+		catch (JSONException e)
+		{
+			throw new JSONRPCException("Invalid JSON batch response", e);
+		}
+
+		for (int i=0; i<answered.length; i++)
+		{
+			if (!answered[i] && !isIgnoringErrors(i))
+			{
+				throw new JSONRPCException("No response in batch for " + methods.get(i));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * @return results ordered as the calls
+	 * @throws JSONRPCException
+	 */
+	private Object[] executeSequentially() throws JSONRPCException
+	{
+		Object[] results = new Object[size()];
+		for (int i=0; i<size(); i++)
+		{
+			try
+			{
+				results[i] = client.call(methods.get(i), params.get(i));
+			}
+			catch (JSONRPCException e)
+			{
+				if (!isIgnoringErrors(i))
+				{
+					throw e;
+				}
+			}
+		}
+		return results;
+	}
+
+	private boolean isIgnoringErrors(int index)
+	{
+		return ignoreErrors.get(index).booleanValue();
+	}
+}
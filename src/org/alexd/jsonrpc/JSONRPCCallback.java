@@ -0,0 +1,28 @@
+package org.alexd.jsonrpc;
+
+/**
+ * Receives the outcome of an asynchronous JSON-RPC method call.
+ * Exactly one method is invoked, once, on the thread which completed the
+ * call: the executor thread which performed it, the selector thread of a 
+ * {@link JSONRPCNioClient}, the executor's timer thread when the deadline 
+ * expires, the thread which cancelled the call, or the calling thread if 
+ * the call could not be started.
+ * 
+ * Methods must therefore return quickly and must not block or throw: they
+ * hold up the thread's other calls, deadlines or network I/O. Hand longer 
+ * work over to another thread.
+ */
+public interface JSONRPCCallback
+{
+	/**
+	 * The call completed successfully
+	 * @param result The result of the RPC
+	 */
+	void onResult(Object result);
+
+	/**
+	 * The call failed, was cancelled or exceeded its deadline
+	 * @param error The cause of the failure
+	 */
+	void onError(JSONRPCException error);
+}
@@ -1,5 +1,9 @@
 package org.alexd.jsonrpc;
 
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -7,6 +11,9 @@ import org.json.JSONObject;
 
 public abstract class JSONRPCClient {
 
+	// Time to wait for a call performed by another thread when no soTimeout is set
+	private static final long DEFAULT_RESPONSE_TIMEOUT_MS = 30000;
+
 	/**
 	 * Create a JSONRPCClient from a given uri 
 	 * @param uri The URI of the JSON-RPC service
@@ -19,7 +26,105 @@ public abstract class JSONRPCClient {
 	
 	protected abstract JSONObject doJSONRequest(JSONObject request) throws JSONRPCException;
 	
-	protected JSONObject doRequest(String method, Object[] params) throws JSONRPCException
+	/**
+	 * Send a JSON-RPC method call. Transports may override this method to
+	 * serialize the request without building a JSONObject.
+	 * @param id The request id
+	 * @param method The name of the method to invoke
+	 * @param params Arguments of the method
+	 * @return the response object
+	 * @throws JSONRPCException if an error is encountered during the call
+	 */
+	protected JSONObject doJSONRequest(int id, String method, Object[] params) throws JSONRPCException
+	{
+		return doJSONRequest(createRequest(id, method, params));
+	}
+	
+	/**
+	 * Send a batch of JSON-RPC requests in a single round trip
+	 * @param requests array of request objects
+	 * @return the array of responses or null if the service (or transport) 
+	 * does not support batch requests
+	 * @throws JSONRPCException if an error is encountered sending the batch
+	 */
+	protected JSONArray doJSONBatchRequest(JSONArray requests) throws JSONRPCException
+	{
+		return null;
+	}
+	
+	protected JSONObject doRequest(final String method, final Object[] params) throws JSONRPCException
+	{
+		final JSONRPCResponseCache cache = responseCache;
+		if (cache != null)
+		{
+			JSONObject cached = cache.get(method, params);
+			if (cached != null)
+			{
+				return cached;
+			}
+		}
+		if (!singleFlight.isCoalesced(method))
+		{
+			return sendRequest(method, params, cache);
+		}
+		return singleFlight.execute(method, params, new JSONRPCSingleFlight.Call() {
+			public JSONObject execute() throws JSONRPCException
+			{
+				return sendRequest(method, params, cache);
+			}
+		}, connectionTimeout + getResponseTimeout(method));
+	}
+	
+	/**
+	 * Send a request and wait for its response
+	 * @param cache the cache in which to record the response, may be null
+	 */
+	private JSONObject sendRequest(String method, Object[] params, JSONRPCResponseCache cache) throws JSONRPCException
+	{
+		JSONRPCPendingRequests.Request request = pendingRequests.register(method);
+		long start = System.currentTimeMillis();
+		JSONRPCException error = null;
+		try
+		{
+			// The transport checks that the response carries the id of the request
+			JSONObject response = doJSONRequest(request.getId(), method, params);
+			if (cache != null)
+			{
+				cache.put(method, params, response);
+			}
+			return response;
+		}
+		catch (JSONRPCException e)
+		{
+			error = e;
+			throw e;
+		}
+		finally
+		{
+			pendingRequests.remove(request);
+			metrics.recordCall(method, System.currentTimeMillis() - start, error);
+		}
+	}
+	
+	/**
+	 * @return milliseconds to wait for the response to a call performed by 
+	 * another thread
+	 */
+	private long getResponseTimeout(String method)
+	{
+		int timeout = getSoTimeout(method);
+		return timeout > 0 ? timeout : DEFAULT_RESPONSE_TIMEOUT_MS;
+	}
+	
+	/**
+	 * Create the json request object for a method call
+	 * @param id The request id
+	 * @param method The name of the method to invoke
+	 * @param params Arguments of the method
+	 * @return the request object
+	 * @throws JSONRPCException if the request cannot be represented as JSON
+	 */
+	JSONObject createRequest(int id, String method, Object[] params) throws JSONRPCException
 	{
 		//Copy method arguments in a json array
 		JSONArray jsonParams = new JSONArray();
@@ -32,8 +137,7 @@ public abstract class JSONRPCClient {
 		JSONObject jsonRequest = new JSONObject();
 		try 
 		{
-			//id hard-coded at 1 for now
-			jsonRequest.put("id", 1);
+			jsonRequest.put("id", id);
 			jsonRequest.put("method", method);
 			jsonRequest.put("params", jsonParams);
 		}
@@ -41,42 +145,206 @@ public abstract class JSONRPCClient {
 		{
 			throw new JSONRPCException("Invalid JSON request", e1);
 		}
-		return doJSONRequest(jsonRequest);
+		return jsonRequest;
 	}
 	
 	protected int soTimeout = 0, connectionTimeout = 0;
 	
+	private final Map<String, Integer> methodSoTimeouts = new ConcurrentHashMap<String, Integer>();
+	
+	private final JSONRPCPendingRequests pendingRequests = new JSONRPCPendingRequests();
+	
+	private final JSONRPCSingleFlight singleFlight = new JSONRPCSingleFlight();
+	
+	private JSONRPCMetrics metrics = new JSONRPCMetrics();
+	
+	/**
+	 * Get the metrics recorded for the calls made by this client
+	 */
+	public JSONRPCMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Set the metrics in which calls are recorded, several clients may 
+	 * share the same metrics
+	 * @param metrics
+	 */
+	public void setMetrics(JSONRPCMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+	
+	private volatile boolean batchSupported = true;
+	
+	private volatile JSONRPCResponseCache responseCache = null;
+	
+	/**
+	 * Coalesce concurrent identical calls of method: callers share the 
+	 * response of the call already in flight instead of sending their own 
+	 * request. Only methods without side effects should be coalesced.
+	 * Calls are coalesced per client: only threads sharing this client 
+	 * share responses.
+	 * @param method The name of the method
+	 * @param coalesced true to coalesce calls, false to always send them
+	 */
+	public void setCoalesced(String method, boolean coalesced)
+	{
+		singleFlight.setCoalesced(method, coalesced);
+	}
+	
+	/**
+	 * True if concurrent identical calls of method are coalesced
+	 * @param method The name of the method
+	 */
+	public boolean isCoalesced(String method)
+	{
+		return singleFlight.isCoalesced(method);
+	}
+	
+	/**
+	 * Get the cache of responses, null if responses are not cached
+	 */
+	public JSONRPCResponseCache getResponseCache()
+	{
+		return responseCache;
+	}
+
+	/**
+	 * Set the cache of responses to calls of cacheable methods
+	 * @param responseCache the cache, or null to disable caching
+	 */
+	public void setResponseCache(JSONRPCResponseCache responseCache)
+	{
+		this.responseCache = responseCache;
+	}
+	
+	/**
+	 * PACKAGE PRIVATE - the requests waiting for a response
+	 */
+	JSONRPCPendingRequests getPendingRequests()
+	{
+		return pendingRequests;
+	}
+	
+	/**
+	 * The number of calls waiting for a response
+	 */
+	public int getPendingRequestCount()
+	{
+		return pendingRequests.size();
+	}
+	
+	/**
+	 * Create a batch of method calls to be sent in a single request
+	 * @return an empty {@link JSONRPCBatch}
+	 */
+	public JSONRPCBatch createBatch()
+	{
+		return new JSONRPCBatch(this);
+	}
+	
+	/**
+	 * False once the service has rejected a batch request, batches are then 
+	 * performed as a sequence of single calls
+	 */
+	public boolean isBatchSupported()
+	{
+		return batchSupported;
+	}
+
+	/**
+	 * Enable or disable batch requests
+	 * @param batchSupported false to always perform batches as a sequence of calls
+	 */
+	public void setBatchSupported(boolean batchSupported)
+	{
+		this.batchSupported = batchSupported;
+	}
+	
+	
+	
+	private JSONRPCExecutor executor = null;
+	
+	/**
+	 * Get the executor used for asynchronous calls
+	 */
+	public JSONRPCExecutor getExecutor()
+	{
+		return executor == null ? JSONRPCExecutor.getDefault() : executor;
+	}
+
+	/**
+	 * Set the executor used for asynchronous calls
+	 * @param executor the executor, or null to use the shared default executor
+	 */
+	public void setExecutor(JSONRPCExecutor executor)
+	{
+		this.executor = executor;
+	}
+	
+	/**
+	 * Start a remote JSON-RPC method call without waiting for the result
+	 * @param method The name of the method to invoke
+	 * @param params Arguments of the method
+	 * @return handle to the pending call
+	 */
+	public JSONRPCFuture callAsync(String method, Object ... params)
+	{
+		return callAsync(null, 0, method, params);
+	}
 	
+	/**
+	 * Start a remote JSON-RPC method call without waiting for the result
+	 * @param callback Notified when the call completes, may be null
+	 * @param deadline Time in milliseconds after which the call is cancelled, 0 for no deadline
+	 * @param method The name of the method to invoke
+	 * @param params Arguments of the method
+	 * @return handle to the pending call
+	 */
+	public JSONRPCFuture callAsync(JSONRPCCallback callback, long deadline, final String method, final Object ... params)
+	{
+		return getExecutor().submit(new Callable<Object>() {
+			public Object call() throws JSONRPCException
+			{
+				return JSONRPCClient.this.call(method, params);
+			}
+		}, callback, deadline);
+	}
+	
+	/**
+	 * Start a remote JSON-RPC method call whose result is not needed, 
+	 * returning as soon as its request has been written: the response is 
+	 * read and discarded in the background. Calls sent one after another 
+	 * are written in the same order.
+	 * @param method The name of the method to invoke
+	 * @param params Arguments of the method
+	 * @return handle to the pending call, e.g. to check for errors later
+	 */
+	public JSONRPCFuture send(final String method, final Object ... params)
+	{
+		return send(new Callable<Object>() {
+			public Object call() throws JSONRPCException
+			{
+				return JSONRPCClient.this.call(method, params);
+			}
+		});
+	}
 	
-//	public Object beginCall(String method, final Object ... params)
-//	{
-//		//Handler 
-//		class RequestThread extends Thread {
-//			String mMethod;
-//			Object[] mParams;
-//			public RequestThread(String method, Object[] params)
-//			{
-//				mMethod = method;
-//				mParams = params;
-//			}
-//			@Override
-//			public void run() {
-//				try
-//				{
-//					doRequest(mMethod, mParams);
-//				}
-//				catch (JSONRPCException e)
-//				{
-//					
-//				}
-//			}
-//			
-//		};
-//		RequestThread requestThread = new RequestThread(method, params);
-//		requestThread.start();
-//		
-//		return null;
-//	}
+	/**
+	 * Run call on the executor, as {@link #send(String, Object...)}, 
+	 * returning as soon as the first request made by call has been written
+	 * @param call The call to perform, using this client
+	 * @return handle to the pending call
+	 */
+	public JSONRPCFuture send(Callable<Object> call)
+	{
+		JSONRPCFuture future = getExecutor().submit(call, null, 0);
+		// The connection may have to be set up before the request is written
+		future.awaitSent(connectionTimeout + getResponseTimeout(null));
+		return future;
+	}
 	
 	/**
 	 * Get the socket operation timeout in milliseconds
@@ -95,6 +363,35 @@ public abstract class JSONRPCClient {
 		this.soTimeout = soTimeout;
 	}
 
+	/**
+	 * Get the socket operation timeout for calls of method
+	 * @param method The name of the method
+	 * @return the timeout set for method, otherwise {@link #getSoTimeout()}
+	 */
+	public int getSoTimeout(String method)
+	{
+		Integer timeout = method == null ? null : methodSoTimeouts.get(method);
+		return timeout == null ? soTimeout : timeout.intValue();
+	}
+
+	/**
+	 * Set the socket operation timeout for calls of method, e.g. a longer
+	 * timeout for a method which is known to be slow
+	 * @param method The name of the method
+	 * @param soTimeout timeout in milliseconds, negative to use {@link #getSoTimeout()}
+	 */
+	public void setSoTimeout(String method, int soTimeout)
+	{
+		if (soTimeout < 0)
+		{
+			methodSoTimeouts.remove(method);
+		}
+		else
+		{
+			methodSoTimeouts.put(method, Integer.valueOf(soTimeout));
+		}
+	}
+
 	/**
 	 * Get the connection timeout in milliseconds
 	 */
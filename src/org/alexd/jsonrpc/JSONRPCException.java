@@ -12,13 +12,27 @@ public class JSONRPCException extends Exception {
 
 	private static final long serialVersionUID = 4657697652848090922L;
 
+	private final transient Object error;
+
 	public JSONRPCException(Object error)
 	{
 		super(error.toString());
+		this.error = error;
 	}
 	
 	public JSONRPCException(String message, Throwable innerException)
 	{
 		super(message, innerException);
+		this.error = null;
+	}
+
+	/**
+	 * The error the exception was created with: for errors reported by the 
+	 * remote service typically a JSONObject with code and message. 
+	 * Null if the exception was created with an underlying cause.
+	 */
+	public Object getError()
+	{
+		return error;
 	}
 }
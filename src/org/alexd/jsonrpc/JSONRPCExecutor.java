@@ -0,0 +1,122 @@
+package org.alexd.jsonrpc;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of threads used to perform asynchronous JSON-RPC calls.
+ * By default all clients share the pool returned by {@link #getDefault()}.
+ * Calls submitted while all threads are busy and the queue is full fail 
+ * immediately rather than creating more threads.
+ */
+public class JSONRPCExecutor
+{
+	/**
+	 * Number of threads in the default executor
+	 */
+	public static final int DEFAULT_THREADS = 4;
+
+	/**
+	 * Maximum number of calls waiting for a thread in the default executor
+	 */
+	public static final int DEFAULT_QUEUE_SIZE = 32;
+
+	private static JSONRPCExecutor defaultExecutor = null;
+
+	private final ThreadPoolExecutor executor;
+	private final ScheduledExecutorService timer;
+
+	/**
+	 * Create an executor
+	 * @param threads The maximum number of concurrent calls
+	 * @param queueSize The maximum number of calls waiting for a thread
+	 */
+	public JSONRPCExecutor(int threads, int queueSize)
+	{
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new DaemonThreadFactory("json-rpc-"));
+		timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("json-rpc-timer-"));
+	}
+
+	/**
+	 * The executor shared by all clients which have not been given their own
+	 */
+	public static synchronized JSONRPCExecutor getDefault()
+	{
+		if (defaultExecutor == null)
+		{
+			defaultExecutor = new JSONRPCExecutor(DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+		}
+		return defaultExecutor;
+	}
+
+	/**
+	 * Run a call on one of the pool threads
+	 * @param call The call to perform
+	 * @param callback Notified of the outcome, may be null
+	 * @param deadline Time in milliseconds after which the call is cancelled, 0 for no deadline
+	 * @return handle to the call
+	 */
+	public JSONRPCFuture submit(Callable<Object> call, JSONRPCCallback callback, long deadline)
+	{
+		final JSONRPCFuture future = new JSONRPCFuture(call, callback);
+		try
+		{
+			executor.execute(future);
+		}
+		catch (RejectedExecutionException e)
+		{
+			future.fail(new JSONRPCException("Too many pending calls", e));
+			return future;
+		}
+
+		if (deadline > 0)
+		{
+			future.setDeadline(timer.schedule(new Runnable() {
+				public void run()
+				{
+					future.expire();
+				}
+			}, deadline, TimeUnit.MILLISECONDS));
+		}
+		return future;
+	}
+
+	/**
+	 * Stop accepting calls, calls already submitted are completed
+	 */
+	public void shutdown()
+	{
+		executor.shutdown();
+		timer.shutdown();
+	}
+
+	/**
+	 * Names pool threads and marks them as daemons so that they never keep
+	 * the process alive
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory
+	{
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		DaemonThreadFactory(String prefix)
+		{
+			this.prefix = prefix;
+		}
+
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,295 @@
+package org.alexd.jsonrpc;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Handle to an asynchronous JSON-RPC method call started with 
+ * {@link JSONRPCClient#callAsync(String, Object...)}.
+ * Use {@link #getResult()} to wait for the result, or {@link #cancel(boolean)} 
+ * if it is no longer needed. Use {@link #awaitSent(long)} to wait only until 
+ * the request has been written.
+ */
+public class JSONRPCFuture extends FutureTask<Object>
+{
+	// The call being run by the current pool thread
+	private static final ThreadLocal<JSONRPCFuture> CURRENT = new ThreadLocal<JSONRPCFuture>();
+
+	private final JSONRPCCallback callback;
+	private final CountDownLatch sent = new CountDownLatch(1);
+	private volatile Future<?> deadline;
+	private volatile JSONRPCHttpExchange exchange;
+	private volatile HttpUriRequest request;
+	private volatile boolean expired = false;
+
+	JSONRPCFuture(Callable<Object> call, JSONRPCCallback callback)
+	{
+		super(call);
+		this.callback = callback;
+	}
+
+	/**
+	 * PACKAGE PRIVATE - a future completed by the transport with 
+	 * {@link #succeed(Object)} or {@link #fail(JSONRPCException)}
+	 */
+	JSONRPCFuture(JSONRPCCallback callback)
+	{
+		this(new Callable<Object>() {
+			public Object call()
+			{
+				throw new IllegalStateException("Completed by the transport");
+			}
+		}, callback);
+	}
+
+	/**
+	 * Wait for the call to complete
+	 * @return The result of the RPC
+	 * @throws JSONRPCException if the call failed, was cancelled or exceeded its deadline
+	 */
+	public Object getResult() throws JSONRPCException
+	{
+		try
+		{
+			return get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new JSONRPCException("Interrupted waiting for result", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw toJSONRPCException(e);
+		}
+		catch (CancellationException e)
+		{
+			throw cancelledException(e);
+		}
+	}
+
+	/**
+	 * Wait at most timeout milliseconds for the call to complete
+	 * @param timeout maximum time to wait in milliseconds
+	 * @return The result of the RPC
+	 * @throws JSONRPCException if the call failed, was cancelled or did not complete in time
+	 */
+	public Object getResult(long timeout) throws JSONRPCException
+	{
+		try
+		{
+			return get(timeout, TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e)
+		{
+			throw new JSONRPCException("No result after " + timeout + "ms", e);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new JSONRPCException("Interrupted waiting for result", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw toJSONRPCException(e);
+		}
+		catch (CancellationException e)
+		{
+			throw cancelledException(e);
+		}
+	}
+
+	/**
+	 * Wait at most timeout milliseconds until the request of the call has 
+	 * been written to the service, or the call has completed. Transports 
+	 * which do not report when requests are written only return once the 
+	 * call has completed.
+	 * @param timeout maximum time to wait in milliseconds
+	 * @return false if the request was not written in time or the thread was interrupted
+	 */
+	public boolean awaitSent(long timeout)
+	{
+		try
+		{
+			return sent.await(timeout, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * PACKAGE PRIVATE - the transport has written a request for the call run
+	 * by the current thread, if any
+	 */
+	static void requestSent()
+	{
+		JSONRPCFuture future = CURRENT.get();
+		if (future != null)
+		{
+			future.sent.countDown();
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		CURRENT.set(this);
+		try
+		{
+			super.run();
+		}
+		finally
+		{
+			CURRENT.remove();
+		}
+	}
+
+	/**
+	 * True if the call was cancelled because its deadline passed
+	 */
+	public boolean isExpired()
+	{
+		return expired;
+	}
+
+	/**
+	 * PACKAGE PRIVATE - cancel the call once its deadline has passed
+	 */
+	void expire()
+	{
+		if (!isDone())
+		{
+			expired = true;
+			cancel(true);
+		}
+	}
+
+	/**
+	 * PACKAGE PRIVATE - the timer task which will expire this call
+	 */
+	void setDeadline(Future<?> deadline)
+	{
+		this.deadline = deadline;
+		if (isDone())
+		{
+			deadline.cancel(false);
+		}
+	}
+
+	/**
+	 * PACKAGE PRIVATE - the exchange performing the call, which is cancelled 
+	 * with the call
+	 */
+	void setExchange(JSONRPCHttpExchange exchange)
+	{
+		this.exchange = exchange;
+		if (isCancelled())
+		{
+			exchange.cancel();
+		}
+	}
+
+	/**
+	 * PACKAGE PRIVATE - the HTTP request being performed for the call run by
+	 * the current thread, if any, which is aborted with the call: 
+	 * interrupting the thread does not stop blocking socket operations
+	 */
+	static void requestStarted(HttpUriRequest request)
+	{
+		JSONRPCFuture future = CURRENT.get();
+		if (future != null)
+		{
+			future.request = request;
+			if (future.isCancelled())
+			{
+				request.abort();
+			}
+		}
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning)
+	{
+		boolean cancelled = super.cancel(mayInterruptIfRunning);
+		JSONRPCHttpExchange current = exchange;
+		if (cancelled && current != null)
+		{
+			current.cancel();
+		}
+		HttpUriRequest currentRequest = request;
+		if (cancelled && currentRequest != null)
+		{
+			currentRequest.abort();
+		}
+		return cancelled;
+	}
+
+	/**
+	 * PACKAGE PRIVATE - complete the call with the given result without running it
+	 */
+	void succeed(Object result)
+	{
+		set(result);
+	}
+
+	/**
+	 * PACKAGE PRIVATE - complete the call with the given error without running it
+	 */
+	void fail(JSONRPCException error)
+	{
+		setException(error);
+	}
+
+	@Override
+	protected void done()
+	{
+		sent.countDown();
+		Future<?> timer = deadline;
+		if (timer != null)
+		{
+			timer.cancel(false);
+		}
+		if (callback == null)
+		{
+			return;
+		}
+
+		Object result;
+		try
+		{
+			result = getResult();
+		}
+		catch (JSONRPCException e)
+		{
+			callback.onError(e);
+			return;
+		}
+		callback.onResult(result);
+	}
+
+	private JSONRPCException cancelledException(CancellationException e)
+	{
+		return new JSONRPCException(expired ? "Deadline exceeded" : "Call cancelled", e);
+	}
+
+	private static JSONRPCException toJSONRPCException(ExecutionException e)
+	{
+		Throwable cause = e.getCause();
+		if (cause instanceof JSONRPCException)
+		{
+			return (JSONRPCException) cause;
+		}
+		return new JSONRPCException("Call failed", cause);
+	}
+}
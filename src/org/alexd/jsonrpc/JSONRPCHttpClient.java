@@ -1,7 +1,11 @@
 package org.alexd.jsonrpc;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
@@ -9,19 +13,39 @@ import org.apache.http.ProtocolVersion;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.util.Log;
-
 /**
  * Implementation of JSON-RPC over HTTP/POST
+ * 
+ * By default requests are sent using HTTP/1.1 so that the underlying 
+ * connection is kept alive and reused for subsequent calls; connections 
+ * left idle for longer than {@link #getIdleConnectionTimeout()} are closed 
+ * before the next request. Servers which do not cope with persistent 
+ * connections may be handled using {@link #setPersistentConnections(boolean)}.
+ * 
+ * A client created with a single connection (the default) sends one request
+ * at a time. A client created with several connections uses a thread-safe 
+ * connection pool, so that concurrent callers may share it without 
+ * serializing their calls. In both cases callers waiting for a connection
+ * are served in the order they arrived.
  */
 public class JSONRPCHttpClient extends JSONRPCClient
 {
@@ -34,10 +58,35 @@ public class JSONRPCHttpClient extends JSONRPCClient
 	 * Service URI
 	 */
 	private String serviceUri;
+	/*
+	 * Parameters shared by all requests issued by this client, replaced 
+	 * (never modified) when the timeouts or protocol version change
+	 */
+	private volatile HttpParams requestParams = null;
+	/*
+	 * One permit per connection, held while a request is executed and its 
+	 * response consumed
+	 */
+	private final Semaphore connectionPermits;
+	private final int maxConnections;
+
+	private boolean persistentConnections = true;
+	private long idleConnectionTimeout = DEFAULT_IDLE_CONNECTION_TIMEOUT_MS;
 
 	// HTTP 1.0
 	protected static final ProtocolVersion PROTOCOL_VERSION = new ProtocolVersion("HTTP", 1, 0);
 
+	// HTTP 1.1 - used when persistent connections are enabled
+	protected static final ProtocolVersion PERSISTENT_PROTOCOL_VERSION = new ProtocolVersion("HTTP", 1, 1);
+
+	// Charset of responses which do not specify one
+	private static final String DEFAULT_CHARSET = "UTF-8";
+
+	/**
+	 * Default time in milliseconds an idle connection is kept open
+	 */
+	public static final long DEFAULT_IDLE_CONNECTION_TIMEOUT_MS = 30000;
+
 	/**
 	 * Construct a JsonRPCClient with the given service uri
 	 * 
@@ -46,41 +95,81 @@ public class JSONRPCHttpClient extends JSONRPCClient
 	 */
 	public JSONRPCHttpClient(String uri)
 	{
-		httpClient = new DefaultHttpClient();
+		this(uri, 1);
+	}
+
+	/**
+	 * Construct a JsonRPCClient with the given service uri, using up to
+	 * maxConnections concurrent connections to the service
+	 * 
+	 * @param uri
+	 *            uri of the service
+	 * @param maxConnections
+	 *            1 for a single connection, more for a thread-safe pool
+	 */
+	public JSONRPCHttpClient(String uri, int maxConnections)
+	{
+		if (maxConnections < 1)
+		{
+			throw new IllegalArgumentException("maxConnections must be at least 1");
+		}
+		httpClient = maxConnections == 1 ? new DefaultHttpClient() : createPooledClient(maxConnections);
 		serviceUri = uri;
+		this.maxConnections = maxConnections;
+		// Fair: callers waiting for a connection are served in order
+		connectionPermits = new Semaphore(maxConnections, true);
 	}
 
-	protected JSONObject doJSONRequest(JSONObject jsonRequest) throws JSONRPCException
+	/**
+	 * @param maxConnections
+	 * @return a client with a thread-safe pool of up to maxConnections 
+	 *         connections per route
+	 */
+	private static HttpClient createPooledClient(int maxConnections)
 	{
-		// Create HTTP/POST request with a JSON entity containing the request
-		HttpPost request = new HttpPost(serviceUri);
 		HttpParams params = new BasicHttpParams();
-		HttpConnectionParams.setConnectionTimeout(params, getConnectionTimeout());
-		HttpConnectionParams.setSoTimeout(params, getSoTimeout());
-		HttpProtocolParams.setVersion(params, PROTOCOL_VERSION);
-		request.setParams(params);
+		ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+
+		SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
 
-		HttpEntity entity;
+		return new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemeRegistry), params);
+	}
+
+	protected JSONObject doJSONRequest(JSONObject jsonRequest) throws JSONRPCException
+	{
+		return doJSONRequest(new JSONEntity(jsonRequest), JSONRPCPendingRequests.getId(jsonRequest),
+				jsonRequest.optString("method"));
+	}
+
+	protected JSONObject doJSONRequest(int id, String method, Object[] params) throws JSONRPCException
+	{
+		JSONEntity entity;
 		try
 		{
-			entity = new JSONEntity(jsonRequest);
+			entity = new JSONEntity(id, method, params);
 		}
-		catch (UnsupportedEncodingException e1)
+		catch (JSONException e1)
 		{
-			throw new JSONRPCException("Unsupported encoding", e1);
+			throw new JSONRPCException("Invalid JSON request", e1);
 		}
-		request.setEntity(entity);
+		return doJSONRequest(entity, Integer.valueOf(id), method);
+	}
 
+	private JSONObject doJSONRequest(JSONEntity entity, Integer id, String method) throws JSONRPCException
+	{
 		try
 		{
-			// Execute the request and try to decode the JSON Response
-			long t = System.currentTimeMillis();
-			HttpResponse response = httpClient.execute(request);
-			t = System.currentTimeMillis() - t;
-			Log.d("json-rpc", "Request time :" + t);
-			String responseString = EntityUtils.toString(response.getEntity());
-			responseString = responseString.trim();
-			JSONObject jsonResponse = new JSONObject(responseString);
+			Object response = postJSON(entity, method);
+			if (!(response instanceof JSONObject))
+			{
+				throw new JSONRPCException("Invalid JSON response: " + response);
+			}
+			JSONObject jsonResponse = (JSONObject) response;
+			// Before anything else, an error for another request is not ours either
+			JSONRPCPendingRequests.checkId(id, method, jsonResponse);
 			// Check for remote errors
 			if (jsonResponse.has("error"))
 			{
@@ -94,6 +183,73 @@ public class JSONRPCHttpClient extends JSONRPCClient
 				return jsonResponse; // JSON-RPC 2.0
 			}
 		}
+		catch (JSONException e)
+		{
+			throw new JSONRPCException("Invalid JSON response", e);
+		}
+	}
+
+	protected JSONArray doJSONBatchRequest(JSONArray jsonRequests) throws JSONRPCException
+	{
+		Object response;
+		try
+		{
+			response = postJSON(new JSONEntity(jsonRequests), JSONRPCBatch.BATCH_METHOD);
+		}
+		catch (JSONException e)
+		{
+			response = null;
+		}
+		return JSONRPCBatch.toBatchResponse(response);
+	}
+
+	/**
+	 * POST the entity to the service uri and decode the JSON value 
+	 * (object or array) found in the response. The entity is released.
+	 * 
+	 * @param entity
+	 * @param method name under which the bytes transferred are recorded
+	 * @return JSONObject or JSONArray
+	 * @throws JSONRPCException on communication errors
+	 * @throws JSONException if the response is not valid JSON
+	 */
+	private Object postJSON(JSONEntity entity, String method) throws JSONRPCException, JSONException
+	{
+		// Create HTTP/POST request with a JSON entity containing the request
+		HttpPost request = createPost(serviceUri);
+		int connectionTimeout = getConnectionTimeout(method);
+		int soTimeout = getSoTimeout(method);
+		if (connectionTimeout != getConnectionTimeout() || soTimeout != getSoTimeout())
+		{
+			request.setParams(createRequestParams(connectionTimeout, soTimeout));
+		}
+		request.setEntity(entity);
+
+		try
+		{
+			acquireConnection();
+		}
+		catch (JSONRPCException e)
+		{
+			entity.release();
+			throw e;
+		}
+		try
+		{
+			// Execute the request and try to decode the JSON Response
+			HttpResponse response = execute(request);
+			CountingInputStream content = null;
+			try
+			{
+				content = getContent(response.getEntity());
+				return readJSON(content, EntityUtils.getContentCharSet(response.getEntity()));
+			}
+			finally
+			{
+				getMetrics().recordBytes(method, entity.getContentLength(), 
+						content == null ? 0 : content.getCount());
+			}
+		}
 		// Underlying errors are wrapped into a JSONRPCException instance
 		catch (ClientProtocolException e)
 		{
@@ -103,9 +259,267 @@ public class JSONRPCHttpClient extends JSONRPCClient
 		{
 			throw new JSONRPCException("IO error", e);
 		}
-		catch (JSONException e)
+		finally
 		{
-			throw new JSONRPCException("Invalid JSON response", e);
+			releaseConnection();
+			entity.release();
+		}
+	}
+
+	/**
+	 * @param entity
+	 * @return the content of the response entity
+	 * @throws IOException
+	 * @throws JSONException if there is no response entity
+	 */
+	private static CountingInputStream getContent(HttpEntity entity) throws IOException, JSONException
+	{
+		if (entity == null)
+		{
+			throw new JSONException("Empty response");
+		}
+		return new CountingInputStream(entity.getContent());
+	}
+
+	/**
+	 * Decode the response as it is read from the connection
+	 * 
+	 * @param content
+	 * @param charset the charset of the response or null if unspecified
+	 * @return JSONObject or JSONArray
+	 * @throws IOException
+	 * @throws JSONException if the entity is not a JSON-RPC response
+	 */
+	private static Object readJSON(InputStream content, String charset) throws IOException, JSONException
+	{
+		try
+		{
+			return new JSONStreamReader(new InputStreamReader(content, 
+					charset == null ? DEFAULT_CHARSET : charset)).readResponse();
+		}
+		finally
+		{
+			// Closing the content stream releases the connection for reuse
+			content.close();
+		}
+	}
+
+	/**
+	 * The connection timeout for a call of method, by default 
+	 * {@link #getConnectionTimeout()}
+	 * 
+	 * @param method The name of the method, or the name under which other 
+	 * requests are recorded
+	 * @return timeout in milliseconds
+	 */
+	protected int getConnectionTimeout(String method)
+	{
+		return getConnectionTimeout();
+	}
+
+	/**
+	 * Create a HTTP/POST request for the given url using the shared request
+	 * parameters (timeouts and protocol version) of this client.
+	 * 
+	 * @param url
+	 * @return HttpPost
+	 */
+	protected HttpPost createPost(String url)
+	{
+		HttpPost request = new HttpPost(url);
+		request.setParams(getRequestParams());
+		return request;
+	}
+
+	/**
+	 * Execute the request, first closing any connections which have been
+	 * idle for too long. Derived classes must consume the entity of the
+	 * returned response so that the connection can be reused.
+	 * 
+	 * @param request
+	 * @return HttpResponse
+	 * @throws IOException
+	 */
+	protected HttpResponse execute(HttpUriRequest request) throws IOException
+	{
+		ClientConnectionManager connectionManager = httpClient.getConnectionManager();
+		connectionManager.closeExpiredConnections();
+		if (persistentConnections)
+		{
+			connectionManager.closeIdleConnections(idleConnectionTimeout, TimeUnit.MILLISECONDS);
+		}
+		else
+		{
+			connectionManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+		}
+		// Cancelling the call being run by this thread aborts the request
+		JSONRPCFuture.requestStarted(request);
+		return httpClient.execute(request);
+	}
+
+	/**
+	 * The parameters shared by all requests, updated with the current
+	 * timeouts and protocol version
+	 * 
+	 * @return HttpParams
+	 */
+	private HttpParams getRequestParams()
+	{
+		HttpParams params = requestParams;
+		if (params == null
+				|| HttpConnectionParams.getConnectionTimeout(params) != getConnectionTimeout()
+				|| HttpConnectionParams.getSoTimeout(params) != getSoTimeout()
+				|| !HttpProtocolParams.getVersion(params).equals(getProtocolVersion()))
+		{
+			// Requests in progress may be reading the current parameters
+			params = createRequestParams(getConnectionTimeout(), getSoTimeout());
+			requestParams = params;
+		}
+		return params;
+	}
+
+	/**
+	 * New request parameters with the current protocol version and the 
+	 * given timeouts, to be set on a single request so that the parameters 
+	 * shared by all requests are left unchanged
+	 * 
+	 * @param connectionTimeout
+	 * @param soTimeout
+	 * @return HttpParams
+	 */
+	protected HttpParams createRequestParams(int connectionTimeout, int soTimeout)
+	{
+		HttpParams params = new BasicHttpParams();
+		HttpConnectionParams.setConnectionTimeout(params, connectionTimeout);
+		HttpConnectionParams.setSoTimeout(params, soTimeout);
+		HttpProtocolParams.setVersion(params, getProtocolVersion());
+		return params;
+	}
+
+	private ProtocolVersion getProtocolVersion()
+	{
+		return persistentConnections ? PERSISTENT_PROTOCOL_VERSION : PROTOCOL_VERSION;
+	}
+
+	/**
+	 * True if connections are kept alive and reused between calls
+	 */
+	public boolean isPersistentConnections()
+	{
+		return persistentConnections;
+	}
+
+	/**
+	 * Enable or disable persistent (HTTP/1.1 keep-alive) connections. 
+	 * When disabled requests are sent using HTTP/1.0 and a new connection 
+	 * is opened for each call, as required by some older servers.
+	 * 
+	 * @param persistentConnections
+	 */
+	public void setPersistentConnections(boolean persistentConnections)
+	{
+		this.persistentConnections = persistentConnections;
+	}
+
+	/**
+	 * Get the time in milliseconds an idle connection is kept open
+	 */
+	public long getIdleConnectionTimeout()
+	{
+		return idleConnectionTimeout;
+	}
+
+	/**
+	 * Set the time an idle connection is kept open, connections idle for
+	 * longer are closed before the next request
+	 * 
+	 * @param idleConnectionTimeout timeout in milliseconds
+	 */
+	public void setIdleConnectionTimeout(long idleConnectionTimeout)
+	{
+		this.idleConnectionTimeout = idleConnectionTimeout;
+	}
+
+	/**
+	 * Close all connections and release resources held by this client. 
+	 * The client may not be used after shutdown.
+	 */
+	public void shutdown()
+	{
+		httpClient.getConnectionManager().shutdown();
+	}
+
+	/**
+	 * The maximum number of concurrent connections to the service
+	 */
+	public int getMaxConnections()
+	{
+		return maxConnections;
+	}
+
+	/**
+	 * Wait for a free connection, callers are served in the order they 
+	 * arrived. Derived classes must acquire a connection before executing
+	 * a request and release it once its response has been consumed.
+	 * 
+	 * @throws JSONRPCException if interrupted while waiting
+	 */
+	protected void acquireConnection() throws JSONRPCException
+	{
+		try
+		{
+			connectionPermits.acquire();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new JSONRPCException("Interrupted waiting for a connection", e);
+		}
+	}
+
+	/**
+	 * Release a connection obtained with {@link #acquireConnection()}
+	 */
+	protected void releaseConnection()
+	{
+		connectionPermits.release();
+	}
+
+	/**
+	 * Counts the bytes read from the response
+	 */
+	private static class CountingInputStream extends FilterInputStream
+	{
+		private long count = 0;
+
+		CountingInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		long getCount()
+		{
+			return count;
+		}
+
+		public int read() throws IOException
+		{
+			int b = super.read();
+			if (b >= 0)
+			{
+				count++;
+			}
+			return b;
+		}
+
+		public int read(byte[] buffer, int offset, int length) throws IOException
+		{
+			int n = super.read(buffer, offset, length);
+			if (n > 0)
+			{
+				count += n;
+			}
+			return n;
 		}
 	}
 
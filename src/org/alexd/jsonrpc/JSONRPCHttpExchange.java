@@ -0,0 +1,593 @@
+package org.alexd.jsonrpc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A HTTP/1.1 POST request and its response, framed without blocking by
+ * {@link JSONRPCSelector}: the request is written as the channel accepts
+ * it and the response is parsed from whatever bytes have arrived.
+ *
+ * Responses may be delimited by Content-Length, chunked transfer encoding
+ * or the end of the connection.
+ */
+class JSONRPCHttpExchange
+{
+	/**
+	 * Notified on the selector thread when the exchange completes
+	 */
+	interface Listener
+	{
+		void onResponse(JSONRPCHttpExchange exchange);
+
+		void onError(JSONRPCHttpExchange exchange, IOException error);
+	}
+
+	private static final Logger LOGGER = Logger.getLogger(JSONRPCHttpExchange.class.getName());
+
+	private static final String HEADER_CHARSET = "ISO-8859-1";
+	private static final int INITIAL_SIZE = 1024;
+
+	// Response parsing states
+	private static final int STATUS_AND_HEADERS = 0;
+	private static final int BODY = 1;
+	private static final int BODY_UNTIL_CLOSE = 2;
+	private static final int CHUNK_SIZE = 3;
+	private static final int CHUNK_DATA = 4;
+	private static final int CHUNK_END = 5;
+	private static final int TRAILERS = 6;
+	private static final int COMPLETE = 7;
+
+	private final String host;
+	private final int port;
+	private final ByteBuffer[] request;
+	private final JSONEntity entity;
+	private final Listener listener;
+	private final int connectionTimeout;
+	private final int soTimeout;
+	private final long deadline;
+	private InetSocketAddress address = null;
+
+	private int state = STATUS_AND_HEADERS;
+	// Bytes received but not yet parsed, and the decoded body
+	private byte[] pending = new byte[INITIAL_SIZE];
+	private int pendingLength = 0;
+	private byte[] body = new byte[INITIAL_SIZE];
+	private int bodyLength = 0;
+	private long remaining = 0;
+	private long received = 0;
+
+	private int statusCode = 0;
+	private boolean keepAlive = true;
+	private final Map<String, String> headers = new HashMap<String, String>();
+	private final List<String> cookies = new ArrayList<String>();
+
+	private volatile boolean cancelled = false;
+
+	/**
+	 * @param host
+	 * @param port
+	 * @param path request path, including any query
+	 * @param cookie value of the Cookie header, null for none
+	 * @param entity request body, null for none; released when the exchange completes
+	 * @param listener
+	 * @param connectionTimeout milliseconds, 0 for none
+	 * @param soTimeout milliseconds without progress after which the exchange fails, 0 for none
+	 * @param deadline time by which the exchange must complete, 0 for none
+	 */
+	JSONRPCHttpExchange(String host, int port, String path, String cookie, JSONEntity entity,
+			Listener listener, int connectionTimeout, int soTimeout, long deadline)
+	{
+		this.host = host;
+		this.port = port;
+		this.entity = entity;
+		this.listener = listener;
+		this.connectionTimeout = connectionTimeout;
+		this.soTimeout = soTimeout;
+		this.deadline = deadline;
+
+		StringBuilder header = new StringBuilder();
+		header.append("POST ").append(path).append(" HTTP/1.1\r\n");
+		header.append("Host: ").append(host);
+		if (port != 80)
+		{
+			header.append(':').append(port);
+		}
+		header.append("\r\n");
+		if (cookie != null)
+		{
+			header.append("Cookie: ").append(cookie).append("\r\n");
+		}
+		if (entity != null)
+		{
+			header.append("Content-Type: ").append(entity.getContentType().getValue()).append("\r\n");
+		}
+		header.append("Content-Length: ").append(entity == null ? 0 : entity.getContentLength()).append("\r\n");
+		header.append("\r\n");
+
+		ByteBuffer headerBuffer;
+		try
+		{
+			headerBuffer = ByteBuffer.wrap(header.toString().getBytes(HEADER_CHARSET));
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(HEADER_CHARSET + " not supported", e);
+		}
+		request = entity == null ? new ByteBuffer[] { headerBuffer }
+				: new ByteBuffer[] { headerBuffer, entity.toByteBuffer() };
+	}
+
+	String getHost()
+	{
+		return host;
+	}
+
+	int getPort()
+	{
+		return port;
+	}
+
+	/**
+	 * Look up the address of the host, which may block
+	 * @throws UnknownHostException if the host cannot be resolved
+	 */
+	void resolve() throws UnknownHostException
+	{
+		InetSocketAddress resolved = new InetSocketAddress(host, port);
+		if (resolved.isUnresolved())
+		{
+			throw new UnknownHostException(host);
+		}
+		address = resolved;
+	}
+
+	/**
+	 * The address found by {@link #resolve()}
+	 */
+	InetSocketAddress getAddress()
+	{
+		return address;
+	}
+
+	Listener getListener()
+	{
+		return listener;
+	}
+
+	int getConnectionTimeout()
+	{
+		return connectionTimeout;
+	}
+
+	int getSoTimeout()
+	{
+		return soTimeout;
+	}
+
+	long getDeadline()
+	{
+		return deadline;
+	}
+
+	/**
+	 * The request, to be written with a gathering write
+	 */
+	ByteBuffer[] getRequest()
+	{
+		return request;
+	}
+
+	boolean isRequestWritten()
+	{
+		return !request[request.length - 1].hasRemaining();
+	}
+
+	/**
+	 * Prepare to send the request again on a new connection
+	 */
+	void rewind()
+	{
+		for (int i=0; i<request.length; i++)
+		{
+			request[i].rewind();
+		}
+		state = STATUS_AND_HEADERS;
+		pendingLength = 0;
+		bodyLength = 0;
+		received = 0;
+		keepAlive = true;
+		headers.clear();
+		cookies.clear();
+	}
+
+	/**
+	 * The number of response bytes received
+	 */
+	long getReceived()
+	{
+		return received;
+	}
+
+	long getSent()
+	{
+		long sent = 0;
+		for (int i=0; i<request.length; i++)
+		{
+			sent += request[i].limit();
+		}
+		return sent;
+	}
+
+	/**
+	 * Abandon the exchange, its connection is closed by the selector
+	 */
+	void cancel()
+	{
+		cancelled = true;
+	}
+
+	boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * Parse the bytes read into buffer
+	 * @return true once the response is complete
+	 * @throws IOException if the response is not valid HTTP
+	 */
+	boolean onRead(ByteBuffer buffer) throws IOException
+	{
+		received += buffer.remaining();
+		append(buffer);
+		int position = 0;
+		while (state != COMPLETE && state != BODY_UNTIL_CLOSE)
+		{
+			int consumed = parse(position);
+			if (consumed == 0)
+			{
+				break;
+			}
+			position += consumed;
+		}
+		if (state == BODY_UNTIL_CLOSE)
+		{
+			appendBody(pending, position, pendingLength - position);
+			position = pendingLength;
+		}
+		// Keep unparsed bytes for the next read
+		System.arraycopy(pending, position, pending, 0, pendingLength - position);
+		pendingLength -= position;
+		return state == COMPLETE;
+	}
+
+	/**
+	 * The server closed the connection
+	 * @return true if the response is complete, false if it was truncated
+	 */
+	boolean onEndOfStream()
+	{
+		if (state == BODY_UNTIL_CLOSE)
+		{
+			state = COMPLETE;
+			keepAlive = false;
+		}
+		return state == COMPLETE;
+	}
+
+	/**
+	 * Parse from position in the pending bytes
+	 * @return number of bytes consumed, 0 if more are needed
+	 */
+	private int parse(int position) throws IOException
+	{
+		switch (state)
+		{
+		case STATUS_AND_HEADERS:
+			int end = indexOf(position, "\r\n\r\n");
+			if (end < 0)
+			{
+				return 0;
+			}
+			parseHeaders(new String(pending, position, end - position, HEADER_CHARSET));
+			return end + 4 - position;
+
+		case BODY:
+			int count = (int) Math.min(remaining, pendingLength - position);
+			appendBody(pending, position, count);
+			remaining -= count;
+			if (remaining == 0)
+			{
+				state = COMPLETE;
+			}
+			return count;
+
+		case CHUNK_SIZE:
+			int lineEnd = indexOf(position, "\r\n");
+			if (lineEnd < 0)
+			{
+				return 0;
+			}
+			String size = new String(pending, position, lineEnd - position, HEADER_CHARSET);
+			int extension = size.indexOf(';');
+			try
+			{
+				remaining = Long.parseLong((extension < 0 ? size : size.substring(0, extension)).trim(), 16);
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IOException("Invalid chunk size " + size);
+			}
+			state = remaining == 0 ? TRAILERS : CHUNK_DATA;
+			return lineEnd + 2 - position;
+
+		case CHUNK_DATA:
+			int chunk = (int) Math.min(remaining, pendingLength - position);
+			appendBody(pending, position, chunk);
+			remaining -= chunk;
+			if (remaining == 0)
+			{
+				state = CHUNK_END;
+			}
+			return chunk;
+
+		case CHUNK_END:
+			if (pendingLength - position < 2)
+			{
+				return 0;
+			}
+			state = CHUNK_SIZE;
+			return 2;
+
+		case TRAILERS:
+			int trailerEnd = indexOf(position, "\r\n");
+			if (trailerEnd < 0)
+			{
+				return 0;
+			}
+			if (trailerEnd == position)
+			{
+				state = COMPLETE;
+			}
+			return trailerEnd + 2 - position;
+
+		default:
+			return 0;
+		}
+	}
+
+	private void parseHeaders(String text) throws IOException
+	{
+		String[] lines = text.split("\r\n");
+		String[] status = lines[0].split(" ", 3);
+		if (status.length < 2 || !status[0].startsWith("HTTP/"))
+		{
+			throw new IOException("Invalid status line " + lines[0]);
+		}
+		try
+		{
+			statusCode = Integer.parseInt(status[1]);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IOException("Invalid status line " + lines[0]);
+		}
+		if (statusCode >= 100 && statusCode < 200)
+		{
+			// Interim response, e.g. 100 Continue: the final one follows
+			statusCode = 0;
+			return;
+		}
+		keepAlive = "HTTP/1.1".equals(status[0]);
+
+		for (int i=1; i<lines.length; i++)
+		{
+			int colon = lines[i].indexOf(':');
+			if (colon <= 0)
+			{
+				continue;
+			}
+			String name = lines[i].substring(0, colon).trim().toLowerCase();
+			String value = lines[i].substring(colon + 1).trim();
+			if ("set-cookie".equals(name))
+			{
+				cookies.add(value);
+			}
+			headers.put(name, value);
+		}
+
+		String connection = getHeader("connection");
+		if (connection != null)
+		{
+			keepAlive = connection.equalsIgnoreCase("keep-alive")
+					|| (keepAlive && !connection.equalsIgnoreCase("close"));
+		}
+
+		String transferEncoding = getHeader("transfer-encoding");
+		String contentLength = getHeader("content-length");
+		if (statusCode == 204 || statusCode == 304)
+		{
+			state = COMPLETE;
+		}
+		else if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked"))
+		{
+			state = CHUNK_SIZE;
+		}
+		else if (contentLength != null)
+		{
+			try
+			{
+				remaining = Long.parseLong(contentLength);
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IOException("Invalid Content-Length " + contentLength);
+			}
+			state = remaining == 0 ? COMPLETE : BODY;
+		}
+		else
+		{
+			state = BODY_UNTIL_CLOSE;
+			keepAlive = false;
+		}
+	}
+
+	private int indexOf(int from, String delimiter)
+	{
+		int last = pendingLength - delimiter.length();
+		for (int i=from; i<=last; i++)
+		{
+			int j = 0;
+			while (j < delimiter.length() && pending[i + j] == delimiter.charAt(j))
+			{
+				j++;
+			}
+			if (j == delimiter.length())
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void append(ByteBuffer buffer)
+	{
+		int count = buffer.remaining();
+		if (pendingLength + count > pending.length)
+		{
+			byte[] larger = new byte[Math.max(pending.length * 2, pendingLength + count)];
+			System.arraycopy(pending, 0, larger, 0, pendingLength);
+			pending = larger;
+		}
+		buffer.get(pending, pendingLength, count);
+		pendingLength += count;
+	}
+
+	private void appendBody(byte[] data, int offset, int count)
+	{
+		if (bodyLength + count > body.length)
+		{
+			byte[] larger = new byte[Math.max(body.length * 2, bodyLength + count)];
+			System.arraycopy(body, 0, larger, 0, bodyLength);
+			body = larger;
+		}
+		System.arraycopy(data, offset, body, bodyLength, count);
+		bodyLength += count;
+	}
+
+	int getStatusCode()
+	{
+		return statusCode;
+	}
+
+	/**
+	 * @param name header name in lower case
+	 * @return the value of the last header with that name, or null
+	 */
+	String getHeader(String name)
+	{
+		return headers.get(name);
+	}
+
+	/**
+	 * The values of the Set-Cookie headers of the response
+	 */
+	List<String> getCookies()
+	{
+		return cookies;
+	}
+
+	/**
+	 * True if the connection may be reused once the response is complete
+	 */
+	boolean isKeepAlive()
+	{
+		return keepAlive;
+	}
+
+	/**
+	 * The body of the response
+	 */
+	InputStream getBody()
+	{
+		return new ByteArrayInputStream(body, 0, bodyLength);
+	}
+
+	/**
+	 * The charset of the response or null if unspecified
+	 */
+	String getCharset()
+	{
+		String contentType = getHeader("content-type");
+		if (contentType == null)
+		{
+			return null;
+		}
+		int index = contentType.toLowerCase().indexOf("charset=");
+		if (index < 0)
+		{
+			return null;
+		}
+		String charset = contentType.substring(index + 8);
+		int end = charset.indexOf(';');
+		charset = (end < 0 ? charset : charset.substring(0, end)).trim();
+		if (charset.startsWith("\"") && charset.endsWith("\"") && charset.length() > 1)
+		{
+			charset = charset.substring(1, charset.length() - 1);
+		}
+		return charset;
+	}
+
+	/**
+	 * Release the request entity and notify the listener
+	 */
+	void complete()
+	{
+		release();
+		try
+		{
+			listener.onResponse(this);
+		}
+		catch (RuntimeException e)
+		{
+			// Must not stop the selector thread, which serves every other exchange
+			LOGGER.log(Level.WARNING, "Response listener failed for " + host + ':' + port, e);
+		}
+	}
+
+	/**
+	 * Release the request entity and notify the listener
+	 */
+	void fail(IOException error)
+	{
+		release();
+		try
+		{
+			listener.onError(this, error);
+		}
+		catch (RuntimeException e)
+		{
+			LOGGER.log(Level.WARNING, "Error listener failed for " + host + ':' + port, e);
+		}
+	}
+
+	private void release()
+	{
+		if (entity != null)
+		{
+			entity.release();
+		}
+	}
+}
@@ -0,0 +1,348 @@
+package org.alexd.jsonrpc;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Counters and latency histograms for the calls made by a client.
+ *
+ * For each method the number of calls, errors and bytes sent and received
+ * are counted, and latencies are recorded in a fixed set of buckets so
+ * that memory use does not grow with the number of calls. Errors are also
+ * counted by the type of their underlying exception.
+ *
+ * Use {@link #snapshot()} to obtain a consistent copy for display or export.
+ */
+public class JSONRPCMetrics
+{
+	/**
+	 * Upper bounds in milliseconds of the latency buckets, the last bucket
+	 * counts all longer calls
+	 */
+	static final long[] BUCKET_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 60000 };
+
+	// Further methods are counted together, so that memory use stays bounded
+	private static final int MAX_METHODS = 128;
+	private static final String OTHER_METHODS = "*";
+
+	private final ConcurrentMap<String, MethodMetrics> methods = new ConcurrentHashMap<String, MethodMetrics>();
+	private final ConcurrentMap<String, AtomicLong> errorsByType = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Record a completed call
+	 * @param method The name of the method invoked
+	 * @param latency The time taken in milliseconds
+	 * @param error The cause of failure or null if the call succeeded
+	 */
+	public void recordCall(String method, long latency, Throwable error)
+	{
+		MethodMetrics metrics = getMethodMetrics(method);
+		metrics.calls.incrementAndGet();
+		metrics.totalLatency.addAndGet(latency);
+		metrics.latencies.incrementAndGet(bucketIndex(latency));
+		if (error != null)
+		{
+			metrics.errors.incrementAndGet();
+			increment(errorsByType, getErrorType(error));
+		}
+	}
+
+	/**
+	 * Record the size of a request and its response
+	 * @param method The name of the method invoked
+	 * @param sent bytes sent
+	 * @param received bytes received
+	 */
+	public void recordBytes(String method, long sent, long received)
+	{
+		MethodMetrics metrics = getMethodMetrics(method);
+		metrics.bytesSent.addAndGet(sent);
+		metrics.bytesReceived.addAndGet(received);
+	}
+
+	/**
+	 * Discard all recorded values
+	 */
+	public void reset()
+	{
+		methods.clear();
+		errorsByType.clear();
+	}
+
+	/**
+	 * A copy of the current values
+	 */
+	public Snapshot snapshot()
+	{
+		Map<String, MethodSnapshot> methodSnapshots = new TreeMap<String, MethodSnapshot>();
+		for (Map.Entry<String, MethodMetrics> entry : methods.entrySet())
+		{
+			methodSnapshots.put(entry.getKey(), entry.getValue().snapshot());
+		}
+		Map<String, Long> errors = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : errorsByType.entrySet())
+		{
+			errors.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+		}
+		return new Snapshot(methodSnapshots, errors);
+	}
+
+	private MethodMetrics getMethodMetrics(String method)
+	{
+		MethodMetrics metrics = methods.get(method);
+		if (metrics == null)
+		{
+			if (methods.size() >= MAX_METHODS)
+			{
+				method = OTHER_METHODS;
+			}
+			methods.putIfAbsent(method, new MethodMetrics());
+			metrics = methods.get(method);
+		}
+		return metrics;
+	}
+
+	/**
+	 * The type of the innermost cause of error, e.g. SocketTimeoutException,
+	 * or JSONRPCException for errors reported by the service
+	 */
+	private static String getErrorType(Throwable error)
+	{
+		Throwable cause = error;
+		while (cause.getCause() != null && cause.getCause() != cause)
+		{
+			cause = cause.getCause();
+		}
+		return cause.getClass().getName().substring(cause.getClass().getName().lastIndexOf('.') + 1);
+	}
+
+	private static void increment(ConcurrentMap<String, AtomicLong> counters, String key)
+	{
+		AtomicLong counter = counters.get(key);
+		if (counter == null)
+		{
+			counters.putIfAbsent(key, new AtomicLong());
+			counter = counters.get(key);
+		}
+		counter.incrementAndGet();
+	}
+
+	private static int bucketIndex(long latency)
+	{
+		for (int i=0; i<BUCKET_BOUNDS.length; i++)
+		{
+			if (latency <= BUCKET_BOUNDS[i])
+			{
+				return i;
+			}
+		}
+		return BUCKET_BOUNDS.length;
+	}
+
+	/**
+	 * Live counters for one method
+	 */
+	private static class MethodMetrics
+	{
+		final AtomicLong calls = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong totalLatency = new AtomicLong();
+		final AtomicLong bytesSent = new AtomicLong();
+		final AtomicLong bytesReceived = new AtomicLong();
+		final AtomicLongArray latencies = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+
+		MethodSnapshot snapshot()
+		{
+			long[] buckets = new long[latencies.length()];
+			for (int i=0; i<buckets.length; i++)
+			{
+				buckets[i] = latencies.get(i);
+			}
+			return new MethodSnapshot(calls.get(), errors.get(), totalLatency.get(),
+					bytesSent.get(), bytesReceived.get(), buckets);
+		}
+	}
+
+	/**
+	 * Values recorded for one method at the time of the snapshot
+	 */
+	public static final class MethodSnapshot
+	{
+		private final long calls;
+		private final long errors;
+		private final long totalLatency;
+		private final long bytesSent;
+		private final long bytesReceived;
+		private final long[] buckets;
+
+		MethodSnapshot(long calls, long errors, long totalLatency, long bytesSent, long bytesReceived, long[] buckets)
+		{
+			this.calls = calls;
+			this.errors = errors;
+			this.totalLatency = totalLatency;
+			this.bytesSent = bytesSent;
+			this.bytesReceived = bytesReceived;
+			this.buckets = buckets;
+		}
+
+		public long getCalls()
+		{
+			return calls;
+		}
+
+		public long getErrors()
+		{
+			return errors;
+		}
+
+		public long getBytesSent()
+		{
+			return bytesSent;
+		}
+
+		public long getBytesReceived()
+		{
+			return bytesReceived;
+		}
+
+		/**
+		 * Mean latency in milliseconds
+		 */
+		public long getMeanLatency()
+		{
+			return calls == 0 ? 0 : totalLatency / calls;
+		}
+
+		/**
+		 * Approximate latency percentile: the upper bound of the bucket
+		 * containing the given fraction of calls
+		 * @param percentile e.g. 95 for the 95th percentile
+		 * @return milliseconds, or -1 if beyond the largest bucket
+		 */
+		public long getLatencyPercentile(int percentile)
+		{
+			long total = 0;
+			for (int i=0; i<buckets.length; i++)
+			{
+				total += buckets[i];
+			}
+			if (total == 0)
+			{
+				return 0;
+			}
+			long rank = (total * percentile + 99) / 100;
+			long count = 0;
+			for (int i=0; i<buckets.length; i++)
+			{
+				count += buckets[i];
+				if (count >= rank)
+				{
+					return i < BUCKET_BOUNDS.length ? BUCKET_BOUNDS[i] : -1;
+				}
+			}
+			return -1;
+		}
+
+		public JSONObject toJSON() throws JSONException
+		{
+			JSONObject json = new JSONObject();
+			json.put("calls", calls);
+			json.put("errors", errors);
+			json.put("bytesSent", bytesSent);
+			json.put("bytesReceived", bytesReceived);
+			json.put("meanMs", getMeanLatency());
+			json.put("p50Ms", getLatencyPercentile(50));
+			json.put("p95Ms", getLatencyPercentile(95));
+			json.put("p99Ms", getLatencyPercentile(99));
+			return json;
+		}
+
+		public String toString()
+		{
+			return "calls=" + calls + " errors=" + errors + " mean=" + getMeanLatency()
+					+ "ms p50=" + getLatencyPercentile(50) + "ms p95=" + getLatencyPercentile(95)
+					+ "ms p99=" + getLatencyPercentile(99) + "ms sent=" + bytesSent
+					+ " received=" + bytesReceived;
+		}
+	}
+
+	/**
+	 * Values recorded for all methods at the time of the snapshot
+	 */
+	public static final class Snapshot
+	{
+		private final Map<String, MethodSnapshot> methods;
+		private final Map<String, Long> errorsByType;
+
+		Snapshot(Map<String, MethodSnapshot> methods, Map<String, Long> errorsByType)
+		{
+			this.methods = Collections.unmodifiableMap(methods);
+			this.errorsByType = Collections.unmodifiableMap(errorsByType);
+		}
+
+		/**
+		 * Values per method name
+		 */
+		public Map<String, MethodSnapshot> getMethods()
+		{
+			return methods;
+		}
+
+		/**
+		 * Error counts per exception type
+		 */
+		public Map<String, Long> getErrorsByType()
+		{
+			return errorsByType;
+		}
+
+		public long getTotalBytesSent()
+		{
+			long total = 0;
+			for (Iterator<MethodSnapshot> i = methods.values().iterator(); i.hasNext();)
+			{
+				total += i.next().getBytesSent();
+			}
+			return total;
+		}
+
+		public long getTotalBytesReceived()
+		{
+			long total = 0;
+			for (Iterator<MethodSnapshot> i = methods.values().iterator(); i.hasNext();)
+			{
+				total += i.next().getBytesReceived();
+			}
+			return total;
+		}
+
+		public JSONObject toJSON() throws JSONException
+		{
+			JSONObject jsonMethods = new JSONObject();
+			for (Map.Entry<String, MethodSnapshot> entry : methods.entrySet())
+			{
+				jsonMethods.put(entry.getKey(), entry.getValue().toJSON());
+			}
+			JSONObject json = new JSONObject();
+			json.put("methods", jsonMethods);
+			json.put("errors", new JSONObject(errorsByType));
+			json.put("bytesSent", getTotalBytesSent());
+			json.put("bytesReceived", getTotalBytesReceived());
+			return json;
+		}
+
+		public String toString()
+		{
+			return "methods=" + methods + " errors=" + errorsByType;
+		}
+	}
+}
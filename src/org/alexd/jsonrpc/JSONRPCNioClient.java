@@ -0,0 +1,399 @@
+package org.alexd.jsonrpc;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Implementation of JSON-RPC over HTTP/POST using non-blocking channels.
+ *
+ * Requests are performed by a {@link JSONRPCSelector}, so that one thread
+ * serves the requests of many clients (e.g. one client per device). Blocking
+ * calls wait for their response as usual, while
+ * {@link #callAsync(JSONRPCCallback, long, String, Object...)} does not use
+ * a thread at all: the callback is notified on the selector thread, and so
+ * must not block.
+ *
+ * Cookies set by the service (e.g. a session id) are returned with
+ * subsequent requests. Only the http scheme is supported.
+ */
+public class JSONRPCNioClient extends JSONRPCClient
+{
+	// Charset of responses which do not specify one
+	private static final String DEFAULT_CHARSET = "UTF-8";
+
+	private final JSONRPCSelector selector;
+	private final String host;
+	private final int port;
+	private final String path;
+	private final Map<String, String> cookies = new LinkedHashMap<String, String>();
+
+	/**
+	 * Construct a client for the given service uri using the default selector
+	 * @param uri uri of the service
+	 */
+	public JSONRPCNioClient(String uri)
+	{
+		this(uri, JSONRPCSelector.getDefault());
+	}
+
+	/**
+	 * Construct a client for the given service uri
+	 * @param uri uri of the service
+	 * @param selector The selector performing the requests
+	 */
+	public JSONRPCNioClient(String uri, JSONRPCSelector selector)
+	{
+		URI parsed = URI.create(uri);
+		if (!"http".equalsIgnoreCase(parsed.getScheme()) || parsed.getHost() == null)
+		{
+			throw new IllegalArgumentException("Unsupported uri " + uri);
+		}
+		this.selector = selector;
+		this.host = parsed.getHost();
+		this.port = parsed.getPort() < 0 ? 80 : parsed.getPort();
+		this.path = getPath(parsed);
+	}
+
+	private static String getPath(URI uri)
+	{
+		String path = uri.getRawPath() == null || uri.getRawPath().length() == 0 ? "/" : uri.getRawPath();
+		return uri.getRawQuery() == null ? path : path + '?' + uri.getRawQuery();
+	}
+
+	protected JSONObject doJSONRequest(JSONObject jsonRequest) throws JSONRPCException
+	{
+		String method = jsonRequest.optString("method");
+		return toResponse(postJSON(new JSONEntity(jsonRequest), method), JSONRPCPendingRequests.getId(jsonRequest), method);
+	}
+
+	protected JSONObject doJSONRequest(int id, String method, Object[] params) throws JSONRPCException
+	{
+		return toResponse(postJSON(createEntity(id, method, params), method), Integer.valueOf(id), method);
+	}
+
+	protected JSONArray doJSONBatchRequest(JSONArray jsonRequests) throws JSONRPCException
+	{
+		return JSONRPCBatch.toBatchResponse(postJSON(new JSONEntity(jsonRequests), JSONRPCBatch.BATCH_METHOD));
+	}
+
+	/**
+	 * Start a remote JSON-RPC method call without waiting for the result,
+	 * and without using a thread while the call is in progress
+	 * @param callback Notified on the selector thread when the call completes, may be null
+	 * @param deadline Time in milliseconds after which the call is cancelled, 0 for no deadline
+	 * @param method The name of the method to invoke
+	 * @param params Arguments of the method
+	 * @return handle to the pending call
+	 */
+	public JSONRPCFuture callAsync(JSONRPCCallback callback, long deadline, final String method, Object ... params)
+	{
+		final JSONRPCFuture future = new JSONRPCFuture(callback);
+		final JSONRPCPendingRequests.Request request = getPendingRequests().register(method);
+		final long start = System.currentTimeMillis();
+		JSONEntity entity;
+		try
+		{
+			entity = createEntity(request.getId(), method, params);
+		}
+		catch (JSONRPCException e)
+		{
+			getPendingRequests().remove(request);
+			future.fail(e);
+			return future;
+		}
+
+		JSONRPCHttpExchange exchange = createExchange(path, method, entity, new JSONRPCHttpExchange.Listener() {
+			public void onResponse(JSONRPCHttpExchange exchange)
+			{
+				JSONRPCException error = null;
+				try
+				{
+					recordBytes(method, exchange);
+					storeCookies(exchange);
+					future.succeed(toResponse(readJSON(exchange), Integer.valueOf(request.getId()), method).opt("result"));
+				}
+				catch (JSONRPCException e)
+				{
+					error = e;
+					future.fail(e);
+				}
+				finally
+				{
+					getPendingRequests().remove(request);
+					getMetrics().recordCall(method, System.currentTimeMillis() - start, error);
+				}
+			}
+
+			public void onError(JSONRPCHttpExchange exchange, IOException e)
+			{
+				JSONRPCException error = new JSONRPCException("IO error", e);
+				if (future.isCancelled())
+				{
+					// Nothing to report
+				}
+				else if (exchange.getDeadline() > 0 && System.currentTimeMillis() >= exchange.getDeadline())
+				{
+					future.expire();
+				}
+				else
+				{
+					future.fail(error);
+				}
+				getPendingRequests().remove(request);
+				getMetrics().recordCall(method, System.currentTimeMillis() - start, error);
+			}
+		}, deadline > 0 ? start + deadline : 0);
+		// Cancelling the call frees its connection
+		future.setExchange(exchange);
+		selector.execute(exchange);
+		return future;
+	}
+
+	/**
+	 * Perform a POST without content to the given url, which must be on 
+	 * the same host as the service, e.g. to set up a session
+	 * @param url
+	 * @return the HTTP status code of the response
+	 * @throws JSONRPCException on communication errors
+	 */
+	public int performPost(String url) throws JSONRPCException
+	{
+		URI parsed = URI.create(url);
+		if (!host.equalsIgnoreCase(parsed.getHost()))
+		{
+			throw new IllegalArgumentException("Not on host " + host + ": " + url);
+		}
+		return perform(createExchange(getPath(parsed), null, null, new BlockingListener(), 0)).getStatusCode();
+	}
+
+	/**
+	 * The value of the named cookie set by the service, or null
+	 * @param name
+	 */
+	public String getCookie(String name)
+	{
+		synchronized (cookies)
+		{
+			return cookies.get(name);
+		}
+	}
+
+	/**
+	 * Send the cookie with subsequent requests
+	 * @param name
+	 * @param value the value, or null to remove the cookie
+	 */
+	public void setCookie(String name, String value)
+	{
+		synchronized (cookies)
+		{
+			if (value == null)
+			{
+				cookies.remove(name);
+			}
+			else
+			{
+				cookies.put(name, value);
+			}
+		}
+	}
+
+	/**
+	 * Forget all cookies
+	 */
+	public void clearCookies()
+	{
+		synchronized (cookies)
+		{
+			cookies.clear();
+		}
+	}
+
+	/**
+	 * Get the selector performing the requests of this client
+	 */
+	public JSONRPCSelector getSelector()
+	{
+		return selector;
+	}
+
+	private static JSONEntity createEntity(int id, String method, Object[] params) throws JSONRPCException
+	{
+		try
+		{
+			return new JSONEntity(id, method, params);
+		}
+		catch (JSONException e)
+		{
+			throw new JSONRPCException("Invalid JSON request", e);
+		}
+	}
+
+	/**
+	 * POST the entity to the service uri, wait for the response and decode
+	 * the JSON value (object or array) found in it
+	 * @return JSONObject or JSONArray, null if the response is not valid JSON
+	 */
+	private Object postJSON(JSONEntity entity, String method) throws JSONRPCException
+	{
+		JSONRPCHttpExchange exchange = perform(createExchange(path, method, entity, new BlockingListener(), 0));
+		recordBytes(method, exchange);
+		return readJSON(exchange);
+	}
+
+	/**
+	 * Perform the exchange and wait for it to complete
+	 */
+	private JSONRPCHttpExchange perform(JSONRPCHttpExchange exchange) throws JSONRPCException
+	{
+		BlockingListener listener = (BlockingListener) exchange.getListener();
+		selector.execute(exchange);
+		try
+		{
+			listener.await();
+		}
+		catch (InterruptedException e)
+		{
+			exchange.cancel();
+			Thread.currentThread().interrupt();
+			throw new JSONRPCException("Interrupted waiting for response", e);
+		}
+		if (listener.error != null)
+		{
+			throw new JSONRPCException("IO error", listener.error);
+		}
+		storeCookies(exchange);
+		return exchange;
+	}
+
+	private JSONRPCHttpExchange createExchange(String requestPath, String method, JSONEntity entity,
+			JSONRPCHttpExchange.Listener listener, long deadline)
+	{
+		return new JSONRPCHttpExchange(host, port, requestPath, getCookieHeader(), entity,
+				listener, getConnectionTimeout(), getSoTimeout(method), deadline);
+	}
+
+	private String getCookieHeader()
+	{
+		synchronized (cookies)
+		{
+			if (cookies.isEmpty())
+			{
+				return null;
+			}
+			StringBuilder header = new StringBuilder();
+			for (Iterator<Map.Entry<String, String>> i = cookies.entrySet().iterator(); i.hasNext();)
+			{
+				Map.Entry<String, String> cookie = i.next();
+				header.append(cookie.getKey()).append('=').append(cookie.getValue());
+				if (i.hasNext())
+				{
+					header.append("; ");
+				}
+			}
+			return header.toString();
+		}
+	}
+
+	/**
+	 * Remember the cookies set by the response
+	 */
+	private void storeCookies(JSONRPCHttpExchange exchange)
+	{
+		for (String setCookie : exchange.getCookies())
+		{
+			int end = setCookie.indexOf(';');
+			String cookie = end < 0 ? setCookie : setCookie.substring(0, end);
+			int equals = cookie.indexOf('=');
+			if (equals > 0)
+			{
+				setCookie(cookie.substring(0, equals).trim(), cookie.substring(equals + 1).trim());
+			}
+		}
+	}
+
+	private void recordBytes(String method, JSONRPCHttpExchange exchange)
+	{
+		getMetrics().recordBytes(method, exchange.getSent(), exchange.getReceived());
+	}
+
+	/**
+	 * Decode the JSON value in the body of the response
+	 * @return JSONObject or JSONArray, null if the body is not valid JSON
+	 */
+	private Object readJSON(JSONRPCHttpExchange exchange) throws JSONRPCException
+	{
+		String charset = exchange.getCharset();
+		try
+		{
+			return new JSONStreamReader(new InputStreamReader(exchange.getBody(),
+					charset == null ? DEFAULT_CHARSET : charset)).readResponse();
+		}
+		catch (JSONException e)
+		{
+			return null;
+		}
+		catch (IOException e)
+		{
+			throw new JSONRPCException("IO error", e);
+		}
+	}
+
+	/**
+	 * Check that a single response answers the request with the given id, 
+	 * then check it for remote errors
+	 */
+	private static JSONObject toResponse(Object response, Integer id, String method) throws JSONRPCException
+	{
+		if (!(response instanceof JSONObject))
+		{
+			throw new JSONRPCException("Invalid JSON response: " + response);
+		}
+		JSONObject jsonResponse = (JSONObject) response;
+		JSONRPCPendingRequests.checkId(id, method, jsonResponse);
+		Object jsonError = jsonResponse.opt("error");
+		if (jsonError != null && !jsonError.equals(null))
+		{
+			throw new JSONRPCException(jsonError);
+		}
+		return jsonResponse;
+	}
+
+	/**
+	 * Lets a caller wait for an exchange to complete
+	 */
+	private static class BlockingListener implements JSONRPCHttpExchange.Listener
+	{
+		private boolean done = false;
+		IOException error = null;
+
+		public synchronized void onResponse(JSONRPCHttpExchange exchange)
+		{
+			done = true;
+			notifyAll();
+		}
+
+		public synchronized void onError(JSONRPCHttpExchange exchange, IOException error)
+		{
+			this.error = error;
+			done = true;
+			notifyAll();
+		}
+
+		synchronized void await() throws InterruptedException
+		{
+			while (!done)
+			{
+				wait();
+			}
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package org.alexd.jsonrpc;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+/**
+ * Table of the requests a client has sent and not yet received a response
+ * for, keyed by request id. Ids are generated in increasing order.
+ *
+ * Each HTTP exchange carries exactly one reply, so a response is only ever
+ * matched against the request it answers, see {@link #checkId(Integer, String, JSONObject)}.
+ */
+class JSONRPCPendingRequests
+{
+	private final AtomicInteger lastId = new AtomicInteger();
+	private final Map<Integer, Request> requests = new ConcurrentHashMap<Integer, Request>();
+
+	/**
+	 * Allocate a new id and add a pending request for it
+	 * @param method The name of the method being invoked
+	 * @return the pending request
+	 */
+	Request register(String method)
+	{
+		while (true)
+		{
+			int id = lastId.incrementAndGet();
+			if (id <= 0)
+			{
+				// Wrapped around, restart from 1
+				lastId.compareAndSet(id, 0);
+				continue;
+			}
+			Request request = new Request(id, method);
+			if (!requests.containsKey(Integer.valueOf(id)))
+			{
+				requests.put(Integer.valueOf(id), request);
+				return request;
+			}
+		}
+	}
+
+	/**
+	 * Remove a request which is complete or has been abandoned
+	 * @param request
+	 */
+	void remove(Request request)
+	{
+		requests.remove(Integer.valueOf(request.getId()));
+	}
+
+	/**
+	 * The number of requests waiting for a response
+	 */
+	int size()
+	{
+		return requests.size();
+	}
+
+	/**
+	 * Check that a response, including an error response, answers the 
+	 * request it was received for. A response carrying another id is out 
+	 * of step with its request and must not be returned to the caller.
+	 * @param id the id of the request, null if the request has none
+	 * @param method The name of the method invoked
+	 * @param response the response received
+	 * @throws JSONRPCException if the response carries a different id
+	 */
+	static void checkId(Integer id, String method, JSONObject response) throws JSONRPCException
+	{
+		Integer responseId = getId(response);
+		// Responses without an id (e.g. some JSON-RPC 1.0 errors) can only be ours
+		if (id != null && responseId != null && !responseId.equals(id))
+		{
+			throw new JSONRPCException("Response id " + responseId + " does not match request id " + id
+					+ " of " + method);
+		}
+	}
+
+	/**
+	 * @param response
+	 * @return the id of the response or null if not present
+	 */
+	static Integer getId(JSONObject response)
+	{
+		Object id = response.opt("id");
+		if (id instanceof Number)
+		{
+			return Integer.valueOf(((Number) id).intValue());
+		}
+		if (id instanceof String)
+		{
+			try
+			{
+				return Integer.valueOf((String) id);
+			}
+			catch (NumberFormatException e)
+			{
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A request waiting for its response
+	 */
+	static class Request
+	{
+		private final int id;
+		private final String method;
+
+		Request(int id, String method)
+		{
+			this.id = id;
+			this.method = method;
+		}
+
+		int getId()
+		{
+			return id;
+		}
+
+		String getMethod()
+		{
+			return method;
+		}
+	}
+}
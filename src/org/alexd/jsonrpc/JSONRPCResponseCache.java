@@ -0,0 +1,212 @@
+package org.alexd.jsonrpc;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Cache of the responses to calls of methods declared cacheable, keyed by
+ * method name and parameters. Each method has its own time to live.
+ *
+ * Methods may also be declared as invalidating: a successful call to one
+ * of them (e.g. login or logout) discards all cached responses. Call
+ * {@link #invalidate()} when cached responses may no longer be valid for
+ * other reasons, e.g. a change of network.
+ *
+ * Cached response objects are shared by all callers and must not be modified.
+ */
+public class JSONRPCResponseCache
+{
+	/**
+	 * Default maximum number of cached responses
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 64;
+
+	private final int maxEntries;
+	private final Map<String, Long> ttls = new ConcurrentHashMap<String, Long>();
+	private final Map<String, Boolean> invalidatingMethods = new ConcurrentHashMap<String, Boolean>();
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public JSONRPCResponseCache()
+	{
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * @param maxEntries The maximum number of responses to keep
+	 */
+	public JSONRPCResponseCache(int maxEntries)
+	{
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Declare method cacheable
+	 * @param method The name of the method
+	 * @param ttl Time in milliseconds for which a response remains valid, 0 to stop caching the method
+	 */
+	public void setTTL(String method, long ttl)
+	{
+		if (ttl > 0)
+		{
+			ttls.put(method, Long.valueOf(ttl));
+		}
+		else
+		{
+			ttls.remove(method);
+			invalidate(method);
+		}
+	}
+
+	/**
+	 * @param method The name of the method
+	 * @return Time in milliseconds for which a response remains valid, 0 if not cacheable
+	 */
+	public long getTTL(String method)
+	{
+		Long ttl = ttls.get(method);
+		return ttl == null ? 0 : ttl.longValue();
+	}
+
+	/**
+	 * Declare that a successful call to method invalidates all cached responses
+	 * @param method The name of the method
+	 */
+	public void addInvalidatingMethod(String method)
+	{
+		invalidatingMethods.put(method, Boolean.TRUE);
+	}
+
+	/**
+	 * Discard all cached responses
+	 */
+	public void invalidate()
+	{
+		entries.clear();
+	}
+
+	/**
+	 * Discard the cached responses of method
+	 * @param method The name of the method
+	 */
+	public void invalidate(String method)
+	{
+		for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();)
+		{
+			if (i.next().method.equals(method))
+			{
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * The number of calls answered from the cache
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * The number of calls to cacheable methods not answered from the cache
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * @return the valid cached response to the call or null
+	 */
+	JSONObject get(String method, Object[] params)
+	{
+		if (!ttls.containsKey(method))
+		{
+			return null;
+		}
+		Entry entry = entries.get(createKey(method, params));
+		if (entry == null || entry.expires <= System.currentTimeMillis())
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.response;
+	}
+
+	/**
+	 * Record the response to a successful call
+	 */
+	void put(String method, Object[] params, JSONObject response)
+	{
+		if (invalidatingMethods.containsKey(method))
+		{
+			invalidate();
+			return;
+		}
+		long ttl = getTTL(method);
+		if (ttl <= 0)
+		{
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (entries.size() >= maxEntries)
+		{
+			removeExpired(now);
+			if (entries.size() >= maxEntries)
+			{
+				// Still full, start afresh rather than track usage
+				invalidate();
+			}
+		}
+		entries.put(createKey(method, params), new Entry(method, response, now + ttl));
+	}
+
+	private void removeExpired(long now)
+	{
+		for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();)
+		{
+			if (i.next().expires <= now)
+			{
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return key identifying a call by method name and parameters
+	 */
+	static String createKey(String method, Object[] params)
+	{
+		JSONArray jsonParams = new JSONArray();
+		for (int i=0; i<params.length; i++)
+		{
+			jsonParams.put(params[i]);
+		}
+		return method + '\n' + jsonParams.toString();
+	}
+
+	/**
+	 * A cached response
+	 */
+	private static class Entry
+	{
+		final String method;
+		final JSONObject response;
+		final long expires;
+
+		Entry(String method, JSONObject response, long expires)
+		{
+			this.method = method;
+			this.response = response;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,559 @@
+package org.alexd.jsonrpc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event loop performing the HTTP requests of any number of
+ * {@link JSONRPCNioClient} instances on a single thread, using non-blocking
+ * socket channels.
+ *
+ * Connections are kept alive and reused per host and port (route). At most
+ * {@link #getMaxConnectionsPerRoute()} connections are opened to each route,
+ * further requests wait in order of arrival for a free connection.
+ * A request sent on a reused connection which the server had closed is
+ * repeated once on a new connection.
+ *
+ * By default all clients share the selector returned by {@link #getDefault()}.
+ */
+public class JSONRPCSelector implements Runnable
+{
+	/**
+	 * Default maximum number of connections to each host and port
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 2;
+
+	/**
+	 * Default time in milliseconds an idle connection is kept open
+	 */
+	public static final long DEFAULT_IDLE_CONNECTION_TIMEOUT_MS = 30000;
+
+	// Interval between checks for timeouts while requests are in progress
+	private static final long TIMEOUT_CHECK_INTERVAL_MS = 100;
+	// Interval between checks for idle connections
+	private static final long IDLE_CHECK_INTERVAL_MS = 1000;
+
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	private static JSONRPCSelector defaultSelector = null;
+
+	private final int maxConnectionsPerRoute;
+	private final long idleConnectionTimeout;
+	private final Selector selector;
+	private final Queue<JSONRPCHttpExchange> submitted = new ConcurrentLinkedQueue<JSONRPCHttpExchange>();
+	private volatile boolean running = true;
+	private volatile boolean closed = false;
+
+	// Used only by the selector thread
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	private final Map<String, Route> routes = new HashMap<String, Route>();
+	private final Set<Connection> connections = new HashSet<Connection>();
+
+	/**
+	 * Create a selector and start its thread
+	 * @param maxConnectionsPerRoute The maximum number of connections to each host and port
+	 * @param idleConnectionTimeout Time in milliseconds an idle connection is kept open
+	 * @throws IOException if the selector cannot be opened
+	 */
+	public JSONRPCSelector(int maxConnectionsPerRoute, long idleConnectionTimeout) throws IOException
+	{
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+		this.idleConnectionTimeout = idleConnectionTimeout;
+		this.selector = Selector.open();
+		Thread thread = new Thread(this, "json-rpc-selector");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * The selector shared by all clients which have not been given their own,
+	 * replaced by a new one if it has been shut down or its thread has stopped
+	 */
+	public static synchronized JSONRPCSelector getDefault()
+	{
+		if (defaultSelector == null || !defaultSelector.running || defaultSelector.closed)
+		{
+			try
+			{
+				defaultSelector = new JSONRPCSelector(DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_IDLE_CONNECTION_TIMEOUT_MS);
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException("Unable to open selector", e);
+			}
+		}
+		return defaultSelector;
+	}
+
+	public int getMaxConnectionsPerRoute()
+	{
+		return maxConnectionsPerRoute;
+	}
+
+	public long getIdleConnectionTimeout()
+	{
+		return idleConnectionTimeout;
+	}
+
+	/**
+	 * Close all connections and stop the thread, requests in progress fail
+	 */
+	public void shutdown()
+	{
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * PACKAGE PRIVATE - perform the exchange, its listener is notified on 
+	 * the selector thread, or on the calling thread if the host cannot be 
+	 * resolved or the selector has been shut down
+	 */
+	void execute(JSONRPCHttpExchange exchange)
+	{
+		try
+		{
+			// On the caller's thread, a slow lookup must not hold up every other client
+			exchange.resolve();
+		}
+		catch (UnknownHostException e)
+		{
+			exchange.fail(e);
+			return;
+		}
+		submitted.add(exchange);
+		if (closed)
+		{
+			failSubmitted();
+			return;
+		}
+		selector.wakeup();
+	}
+
+	public void run()
+	{
+		try
+		{
+			while (running)
+			{
+				dispatchSubmitted();
+				selector.select(getSelectTimeout());
+				for (Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext();)
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					handle(key);
+				}
+				checkTimeouts(System.currentTimeMillis());
+			}
+		}
+		catch (IOException e)
+		{
+			// Selector failed, fail everything below
+		}
+		finally
+		{
+			close();
+		}
+	}
+
+	private void handle(SelectionKey key)
+	{
+		Connection connection = (Connection) key.attachment();
+		try
+		{
+			if (key.isValid() && key.isConnectable())
+			{
+				connection.finishConnect();
+			}
+			if (key.isValid() && key.isWritable())
+			{
+				connection.write();
+			}
+			if (key.isValid() && key.isReadable())
+			{
+				connection.read();
+			}
+		}
+		catch (IOException e)
+		{
+			connection.fail(e);
+		}
+	}
+
+	/**
+	 * @return milliseconds to wait for channels to become ready, 0 for ever
+	 */
+	private long getSelectTimeout()
+	{
+		boolean idle = false;
+		for (Connection connection : connections)
+		{
+			if (connection.exchange != null)
+			{
+				return TIMEOUT_CHECK_INTERVAL_MS;
+			}
+			idle = true;
+		}
+		for (Route route : routes.values())
+		{
+			if (!route.waiting.isEmpty())
+			{
+				return TIMEOUT_CHECK_INTERVAL_MS;
+			}
+		}
+		return idle ? IDLE_CHECK_INTERVAL_MS : 0;
+	}
+
+	private void dispatchSubmitted()
+	{
+		JSONRPCHttpExchange exchange;
+		while ((exchange = submitted.poll()) != null)
+		{
+			String key = exchange.getHost() + ':' + exchange.getPort();
+			Route route = routes.get(key);
+			if (route == null)
+			{
+				route = new Route();
+				routes.put(key, route);
+			}
+			route.waiting.add(exchange);
+			dispatch(route);
+		}
+	}
+
+	/**
+	 * Start waiting exchanges on free or new connections
+	 */
+	private void dispatch(Route route)
+	{
+		while (!route.waiting.isEmpty())
+		{
+			JSONRPCHttpExchange exchange = route.waiting.getFirst();
+			if (exchange.isCancelled())
+			{
+				route.waiting.removeFirst();
+				exchange.fail(new IOException("Cancelled"));
+				continue;
+			}
+
+			Connection connection = null;
+			if (!route.idle.isEmpty())
+			{
+				// Most recently used first, it is the least likely to have been closed
+				connection = route.idle.removeLast();
+			}
+			else if (route.open < maxConnectionsPerRoute)
+			{
+				try
+				{
+					connection = new Connection(route, exchange.getAddress());
+				}
+				catch (IOException e)
+				{
+					route.waiting.removeFirst();
+					exchange.fail(e);
+					continue;
+				}
+			}
+			else
+			{
+				return;
+			}
+			route.waiting.removeFirst();
+			connection.start(exchange);
+		}
+	}
+
+	private void checkTimeouts(long now)
+	{
+		for (Connection connection : new ArrayList<Connection>(connections))
+		{
+			connection.checkTimeout(now);
+		}
+		for (Route route : routes.values())
+		{
+			for (Iterator<JSONRPCHttpExchange> i = route.waiting.iterator(); i.hasNext();)
+			{
+				JSONRPCHttpExchange exchange = i.next();
+				if (exchange.isCancelled())
+				{
+					i.remove();
+					exchange.fail(new IOException("Cancelled"));
+				}
+				else if (exchange.getDeadline() > 0 && now >= exchange.getDeadline())
+				{
+					i.remove();
+					exchange.fail(new SocketTimeoutException("Deadline exceeded waiting for a connection"));
+				}
+			}
+		}
+	}
+
+	private void close()
+	{
+		closed = true;
+		IOException error = new IOException("Selector shut down");
+		for (Connection connection : new ArrayList<Connection>(connections))
+		{
+			JSONRPCHttpExchange exchange = connection.exchange;
+			connection.exchange = null;
+			connection.close();
+			if (exchange != null)
+			{
+				exchange.fail(error);
+			}
+		}
+		for (Route route : routes.values())
+		{
+			for (JSONRPCHttpExchange exchange : route.waiting)
+			{
+				exchange.fail(error);
+			}
+			route.waiting.clear();
+		}
+		failSubmitted();
+		try
+		{
+			selector.close();
+		}
+		catch (IOException e)
+		{
+			// Ignore
+		}
+	}
+
+	private void failSubmitted()
+	{
+		JSONRPCHttpExchange exchange;
+		while ((exchange = submitted.poll()) != null)
+		{
+			exchange.fail(new IOException("Selector shut down"));
+		}
+	}
+
+	/**
+	 * Connections and waiting exchanges for a host and port
+	 */
+	private static class Route
+	{
+		final LinkedList<JSONRPCHttpExchange> waiting = new LinkedList<JSONRPCHttpExchange>();
+		final LinkedList<Connection> idle = new LinkedList<Connection>();
+		int open = 0;
+	}
+
+	/**
+	 * A connection and the exchange in progress on it, if any
+	 */
+	private class Connection
+	{
+		final Route route;
+		final SocketChannel channel;
+		final SelectionKey key;
+		JSONRPCHttpExchange exchange = null;
+		boolean connected;
+		boolean reused = false;
+		boolean closed = false;
+		long lastActivity = System.currentTimeMillis();
+
+		Connection(Route route, InetSocketAddress address) throws IOException
+		{
+			this.route = route;
+			channel = SocketChannel.open();
+			try
+			{
+				channel.configureBlocking(false);
+				connected = channel.connect(address);
+				key = channel.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, this);
+			}
+			catch (IOException e)
+			{
+				channel.close();
+				throw e;
+			}
+			route.open++;
+			connections.add(this);
+		}
+
+		void start(JSONRPCHttpExchange exchange)
+		{
+			this.exchange = exchange;
+			lastActivity = System.currentTimeMillis();
+			if (connected)
+			{
+				key.interestOps(SelectionKey.OP_WRITE);
+			}
+		}
+
+		void finishConnect() throws IOException
+		{
+			if (channel.finishConnect())
+			{
+				connected = true;
+				lastActivity = System.currentTimeMillis();
+				key.interestOps(exchange == null ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+			}
+		}
+
+		void write() throws IOException
+		{
+			if (exchange == null)
+			{
+				key.interestOps(SelectionKey.OP_READ);
+				return;
+			}
+			if (channel.write(exchange.getRequest()) > 0)
+			{
+				lastActivity = System.currentTimeMillis();
+			}
+			if (exchange.isRequestWritten())
+			{
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		void read() throws IOException
+		{
+			readBuffer.clear();
+			int count = channel.read(readBuffer);
+			if (count < 0)
+			{
+				if (exchange == null)
+				{
+					// Idle connection closed by the server
+					close();
+				}
+				else if (exchange.onEndOfStream())
+				{
+					complete();
+				}
+				else
+				{
+					throw new EOFException("Connection closed by server");
+				}
+				return;
+			}
+			if (exchange == null)
+			{
+				// Nothing was requested, the connection is out of step
+				close();
+				return;
+			}
+			lastActivity = System.currentTimeMillis();
+			readBuffer.flip();
+			if (exchange.onRead(readBuffer))
+			{
+				complete();
+			}
+		}
+
+		private void complete()
+		{
+			JSONRPCHttpExchange completed = exchange;
+			exchange = null;
+			if (completed.isKeepAlive() && running)
+			{
+				reused = true;
+				lastActivity = System.currentTimeMillis();
+				// Reading detects the server closing the idle connection
+				key.interestOps(SelectionKey.OP_READ);
+				route.idle.add(this);
+			}
+			else
+			{
+				close();
+			}
+			completed.complete();
+			dispatch(route);
+		}
+
+		void fail(IOException error)
+		{
+			JSONRPCHttpExchange failed = exchange;
+			exchange = null;
+			close();
+			if (failed != null)
+			{
+				if (reused && failed.getReceived() == 0 && !failed.isCancelled()
+						&& !(error instanceof SocketTimeoutException))
+				{
+					// The server had closed the kept alive connection: try a new one
+					failed.rewind();
+					route.waiting.addFirst(failed);
+				}
+				else
+				{
+					failed.fail(error);
+				}
+			}
+			dispatch(route);
+		}
+
+		void checkTimeout(long now)
+		{
+			if (exchange == null)
+			{
+				if (now - lastActivity >= idleConnectionTimeout)
+				{
+					close();
+				}
+				return;
+			}
+			if (exchange.isCancelled())
+			{
+				fail(new IOException("Cancelled"));
+			}
+			else if (exchange.getDeadline() > 0 && now >= exchange.getDeadline())
+			{
+				fail(new SocketTimeoutException("Deadline exceeded"));
+			}
+			else if (!connected && exchange.getConnectionTimeout() > 0
+					&& now - lastActivity >= exchange.getConnectionTimeout())
+			{
+				fail(new SocketTimeoutException("Connect timed out"));
+			}
+			else if (connected && exchange.getSoTimeout() > 0
+					&& now - lastActivity >= exchange.getSoTimeout())
+			{
+				fail(new SocketTimeoutException("Read timed out"));
+			}
+		}
+
+		void close()
+		{
+			if (closed)
+			{
+				return;
+			}
+			closed = true;
+			key.cancel();
+			try
+			{
+				channel.close();
+			}
+			catch (IOException e)
+			{
+				// Ignore
+			}
+			route.open--;
+			route.idle.remove(this);
+			connections.remove(this);
+		}
+	}
+}
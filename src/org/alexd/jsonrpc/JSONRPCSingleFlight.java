@@ -0,0 +1,149 @@
+package org.alexd.jsonrpc;
+
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONObject;
+
+/**
+ * Coalesces concurrent identical calls: while a call to a coalesced method
+ * is in flight, further callers with the same method and parameters wait
+ * for it and receive its response (or error) instead of sending their own
+ * request.
+ *
+ * Only methods without side effects should be coalesced.
+ */
+class JSONRPCSingleFlight
+{
+	private final Map<String, Boolean> methods = new ConcurrentHashMap<String, Boolean>();
+	private final Map<String, Flight> flights = new HashMap<String, Flight>();
+
+	/**
+	 * A call which may be shared
+	 */
+	interface Call
+	{
+		JSONObject execute() throws JSONRPCException;
+	}
+
+	void setCoalesced(String method, boolean coalesced)
+	{
+		if (coalesced)
+		{
+			methods.put(method, Boolean.TRUE);
+		}
+		else
+		{
+			methods.remove(method);
+		}
+	}
+
+	boolean isCoalesced(String method)
+	{
+		return methods.containsKey(method);
+	}
+
+	/**
+	 * Perform call, unless an identical call is already in flight
+	 * @param method The name of the method invoked
+	 * @param params Arguments of the method
+	 * @param call Performs the call
+	 * @param timeout milliseconds to wait for a call in flight
+	 * @return the response
+	 * @throws JSONRPCException the error of the call
+	 */
+	JSONObject execute(String method, Object[] params, Call call, long timeout) throws JSONRPCException
+	{
+		String key = JSONRPCResponseCache.createKey(method, params);
+		Flight flight;
+		boolean leader = false;
+		synchronized (flights)
+		{
+			flight = flights.get(key);
+			if (flight == null)
+			{
+				flight = new Flight();
+				flights.put(key, flight);
+				leader = true;
+			}
+		}
+		if (!leader)
+		{
+			return flight.await(method, timeout);
+		}
+
+		JSONObject response = null;
+		JSONRPCException error = null;
+		try
+		{
+			response = call.execute();
+			return response;
+		}
+		catch (JSONRPCException e)
+		{
+			error = e;
+			throw e;
+		}
+		finally
+		{
+			synchronized (flights)
+			{
+				flights.remove(key);
+			}
+			if (response == null && error == null)
+			{
+				error = new JSONRPCException("Shared call of " + method + " failed");
+			}
+			flight.complete(response, error);
+		}
+	}
+
+	/**
+	 * A call in flight
+	 */
+	private static class Flight
+	{
+		private boolean done = false;
+		private JSONObject response = null;
+		private JSONRPCException error = null;
+
+		synchronized void complete(JSONObject response, JSONRPCException error)
+		{
+			this.response = response;
+			this.error = error;
+			this.done = true;
+			notifyAll();
+		}
+
+		synchronized JSONObject await(String method, long timeout) throws JSONRPCException
+		{
+			long end = System.currentTimeMillis() + timeout;
+			try
+			{
+				while (!done)
+				{
+					long remaining = end - System.currentTimeMillis();
+					if (remaining <= 0)
+					{
+						// A timeout, as if this caller had sent the request itself
+						String message = "No response for shared call of " + method;
+						throw new JSONRPCException(message, new SocketTimeoutException(message));
+					}
+					wait(remaining);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new JSONRPCException("Interrupted waiting for response", e);
+			}
+			if (error != null)
+			{
+				throw error;
+			}
+			return response;
+		}
+	}
+}
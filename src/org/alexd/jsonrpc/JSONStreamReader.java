@@ -0,0 +1,459 @@
+package org.alexd.jsonrpc;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Decodes JSON-RPC responses incrementally from a character stream.
+ *
+ * Only the members of the response envelope used by the client
+ * ("id", "error" and "result") are decoded, other members are skipped
+ * without being stored. The response is never held as a String.
+ */
+class JSONStreamReader
+{
+	private static final int BUFFER_SIZE = 1024;
+
+	private final Reader reader;
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private int position = 0;
+	private int limit = 0;
+
+	/**
+	 * @param reader The stream to read the response from
+	 */
+	JSONStreamReader(Reader reader)
+	{
+		this.reader = reader;
+	}
+
+	/**
+	 * Read a single response or a batch of responses
+	 * @return JSONObject for a single response, JSONArray for a batch
+	 * @throws JSONException if the stream does not contain a JSON-RPC response
+	 * @throws IOException on error reading the stream
+	 */
+	Object readResponse() throws JSONException, IOException
+	{
+		int c = nextNonWhitespace();
+		if (c == '{')
+		{
+			return readEnvelope();
+		}
+		if (c == '[')
+		{
+			JSONArray responses = new JSONArray();
+			if (nextNonWhitespace() == ']')
+			{
+				return responses;
+			}
+			position--;
+			while (true)
+			{
+				if (nextNonWhitespace() != '{')
+				{
+					throw syntaxError("Expected response object");
+				}
+				responses.put(readEnvelope());
+				c = nextNonWhitespace();
+				if (c == ']')
+				{
+					return responses;
+				}
+				if (c != ',')
+				{
+					throw syntaxError("Expected , or ]");
+				}
+			}
+		}
+		throw syntaxError("Expected JSON-RPC response");
+	}
+
+	/**
+	 * Read a response object, the opening brace has been consumed
+	 */
+	private JSONObject readEnvelope() throws JSONException, IOException
+	{
+		JSONObject envelope = new JSONObject();
+		if (nextNonWhitespace() == '}')
+		{
+			return envelope;
+		}
+		position--;
+		while (true)
+		{
+			if (nextNonWhitespace() != '"')
+			{
+				throw syntaxError("Expected member name");
+			}
+			String name = readString();
+			if (nextNonWhitespace() != ':')
+			{
+				throw syntaxError("Expected :");
+			}
+			if ("result".equals(name) || "error".equals(name) || "id".equals(name))
+			{
+				envelope.put(name, readValue());
+			}
+			else
+			{
+				skipValue();
+			}
+
+			int c = nextNonWhitespace();
+			if (c == '}')
+			{
+				return envelope;
+			}
+			if (c != ',')
+			{
+				throw syntaxError("Expected , or }");
+			}
+		}
+	}
+
+	/**
+	 * Read any JSON value as the equivalent org.json object
+	 */
+	private Object readValue() throws JSONException, IOException
+	{
+		int c = nextNonWhitespace();
+		switch (c)
+		{
+		case '{':
+			return readObject();
+		case '[':
+			return readArray();
+		case '"':
+			return readString();
+		case 't':
+			expect("rue");
+			return Boolean.TRUE;
+		case 'f':
+			expect("alse");
+			return Boolean.FALSE;
+		case 'n':
+			expect("ull");
+			return JSONObject.NULL;
+		default:
+			if (c == '-' || (c >= '0' && c <= '9'))
+			{
+				return readNumber(c);
+			}
+			throw syntaxError("Unexpected character " + describe(c));
+		}
+	}
+
+	private JSONObject readObject() throws JSONException, IOException
+	{
+		JSONObject object = new JSONObject();
+		if (nextNonWhitespace() == '}')
+		{
+			return object;
+		}
+		position--;
+		while (true)
+		{
+			if (nextNonWhitespace() != '"')
+			{
+				throw syntaxError("Expected member name");
+			}
+			String name = readString();
+			if (nextNonWhitespace() != ':')
+			{
+				throw syntaxError("Expected :");
+			}
+			object.put(name, readValue());
+			int c = nextNonWhitespace();
+			if (c == '}')
+			{
+				return object;
+			}
+			if (c != ',')
+			{
+				throw syntaxError("Expected , or }");
+			}
+		}
+	}
+
+	private JSONArray readArray() throws JSONException, IOException
+	{
+		JSONArray array = new JSONArray();
+		if (nextNonWhitespace() == ']')
+		{
+			return array;
+		}
+		position--;
+		while (true)
+		{
+			array.put(readValue());
+			int c = nextNonWhitespace();
+			if (c == ']')
+			{
+				return array;
+			}
+			if (c != ',')
+			{
+				throw syntaxError("Expected , or ]");
+			}
+		}
+	}
+
+	/**
+	 * Read a string, the opening quote has been consumed
+	 */
+	private String readString() throws JSONException, IOException
+	{
+		StringBuilder builder = null;
+		while (true)
+		{
+			// Scan the buffer for the end of the string or an escape
+			int start = position;
+			while (position < limit)
+			{
+				char c = buffer[position++];
+				if (c == '"')
+				{
+					if (builder == null)
+					{
+						return new String(buffer, start, position - start - 1);
+					}
+					builder.append(buffer, start, position - start - 1);
+					return builder.toString();
+				}
+				if (c == '\\')
+				{
+					if (builder == null)
+					{
+						builder = new StringBuilder();
+					}
+					builder.append(buffer, start, position - start - 1);
+					builder.append(readEscape());
+					start = position;
+				}
+			}
+			if (builder == null)
+			{
+				builder = new StringBuilder();
+			}
+			builder.append(buffer, start, position - start);
+			if (!fill())
+			{
+				throw syntaxError("Unterminated string");
+			}
+		}
+	}
+
+	/**
+	 * Read the character following a backslash
+	 */
+	private char readEscape() throws JSONException, IOException
+	{
+		int c = next();
+		switch (c)
+		{
+		case 'b':
+			return '\b';
+		case 't':
+			return '\t';
+		case 'n':
+			return '\n';
+		case 'f':
+			return '\f';
+		case 'r':
+			return '\r';
+		case 'u':
+			int value = 0;
+			for (int i=0; i<4; i++)
+			{
+				int digit = Character.digit(next(), 16);
+				if (digit < 0)
+				{
+					throw syntaxError("Invalid unicode escape");
+				}
+				value = value << 4 | digit;
+			}
+			return (char) value;
+		case '"':
+		case '\\':
+		case '/':
+			return (char) c;
+		default:
+			throw syntaxError("Invalid escape " + describe(c));
+		}
+	}
+
+	/**
+	 * Read a number, the first character has been consumed
+	 */
+	private Object readNumber(int first) throws JSONException, IOException
+	{
+		StringBuilder builder = new StringBuilder();
+		builder.append((char) first);
+		boolean integer = true;
+		while (true)
+		{
+			int c = peek();
+			if ((c >= '0' && c <= '9') || c == '-' || c == '+')
+			{
+				builder.append((char) next());
+			}
+			else if (c == '.' || c == 'e' || c == 'E')
+			{
+				integer = false;
+				builder.append((char) next());
+			}
+			else
+			{
+				break;
+			}
+		}
+
+		String number = builder.toString();
+		try
+		{
+			if (integer)
+			{
+				long value = Long.parseLong(number);
+				if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
+				{
+					return Integer.valueOf((int) value);
+				}
+				return Long.valueOf(value);
+			}
+			return Double.valueOf(number);
+		}
+		catch (NumberFormatException e)
+		{
+			throw syntaxError("Invalid number " + number);
+		}
+	}
+
+	/**
+	 * Skip a value without storing it
+	 */
+	private void skipValue() throws JSONException, IOException
+	{
+		int c = nextNonWhitespace();
+		if (c == '"')
+		{
+			skipString();
+			return;
+		}
+		if (c != '{' && c != '[')
+		{
+			// Literal or number: skip to the next delimiter
+			position--;
+			readValue();
+			return;
+		}
+
+		int depth = 1;
+		while (depth > 0)
+		{
+			c = next();
+			if (c == '"')
+			{
+				skipString();
+			}
+			else if (c == '{' || c == '[')
+			{
+				depth++;
+			}
+			else if (c == '}' || c == ']')
+			{
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * Skip a string, the opening quote has been consumed
+	 */
+	private void skipString() throws JSONException, IOException
+	{
+		while (true)
+		{
+			int c = next();
+			if (c == '"')
+			{
+				return;
+			}
+			if (c == '\\')
+			{
+				next();
+			}
+		}
+	}
+
+	private void expect(String rest) throws JSONException, IOException
+	{
+		for (int i=0; i<rest.length(); i++)
+		{
+			if (next() != rest.charAt(i))
+			{
+				throw syntaxError("Invalid literal");
+			}
+		}
+	}
+
+	private int nextNonWhitespace() throws JSONException, IOException
+	{
+		while (true)
+		{
+			int c = next();
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+			{
+				return c;
+			}
+		}
+	}
+
+	private int next() throws JSONException, IOException
+	{
+		if (position == limit && !fill())
+		{
+			throw syntaxError("Unexpected end of response");
+		}
+		return buffer[position++];
+	}
+
+	private int peek() throws IOException
+	{
+		if (position == limit && !fill())
+		{
+			return -1;
+		}
+		return buffer[position];
+	}
+
+	/**
+	 * Refill the buffer once all its characters have been consumed
+	 * @return false at end of stream
+	 */
+	private boolean fill() throws IOException
+	{
+		int count = reader.read(buffer, 0, buffer.length);
+		if (count <= 0)
+		{
+			return false;
+		}
+		position = 0;
+		limit = count;
+		return true;
+	}
+
+	private static String describe(int c)
+	{
+		return "'" + (char) c + "'";
+	}
+
+	private static JSONException syntaxError(String message)
+	{
+		return new JSONException(message);
+	}
+}